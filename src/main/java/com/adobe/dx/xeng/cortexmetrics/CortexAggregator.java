@@ -0,0 +1,467 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates run metrics within Jenkins rather than sending samples for every run. Runs are counted by
+ * {@link CortexCounter}s and their durations recorded in {@link CortexHistogram}s per destination and label set, and
+ * every counter and histogram is written to Cortex at the configured interval, so the number of series sent depends
+ * only on the number of label sets and buckets rather than on the number of runs. Since the series are cumulative, a
+ * failed flush loses no observations, they are included in the next one. A destination is identified by its URL and
+ * bearer token only, so changing the timeouts does not start the series again, and every series is written with the
+ * endpoint settings it was last updated with.
+ *
+ * <p>Series not updated for {@link #EXPIRE_AFTER_INTERVALS} intervals are dropped after being written a last time, and
+ * the series of deleted or renamed jobs are dropped right away, so the aggregates do not grow with every job and label
+ * set ever seen. An update racing with the expiry of its series may be lost.</p>
+ *
+ * <p>The aggregated values are saved to disk after every flush and on shutdown, and loaded again when the aggregator
+ * starts, so the series remain monotonic across restarts and {@code rate()} and {@code increase()} work as expected.
+ * At most the observations made since the last flush are lost if Jenkins stops abruptly.</p>
+ *
+ * @author saville
+ */
+final class CortexAggregator {
+    private static final Logger LOGGER = Logger.getLogger(CortexAggregator.class.getName());
+
+    /**
+     * The file under the Jenkins root containing the aggregated values.
+     */
+    private static final String STATE_FILE = "cortex-metrics/aggregates.dat";
+
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * The number of aggregation intervals after which series that were not updated are dropped, a week at the default
+     * interval.
+     */
+    static final int EXPIRE_AFTER_INTERVALS = 10080;
+
+    private static CortexAggregator instance;
+
+    private final File stateFile;
+    private final ConcurrentMap<Key, CortexCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, CortexHistogram> histograms = new ConcurrentHashMap<>();
+    // The endpoint each counter and histogram was last updated with
+    private final ConcurrentMap<Key, CortexEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics aggregation"));
+    // The configured buckets last parsed
+    private volatile String buckets;
+    private volatile double[] bounds;
+
+    private CortexAggregator(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Retrieves the controller-wide aggregator, loading the values saved before a restart and starting its periodic
+     * flush on first use.
+     * @return the aggregator
+     */
+    static synchronized CortexAggregator get() {
+        if (instance == null) {
+            instance = new CortexAggregator(new File(Jenkins.get().getRootDir(), STATE_FILE));
+            instance.load();
+            instance.scheduleFlush();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds to the counter for the endpoint, metric and labels.
+     * @param endpoint the endpoint the counter is written to
+     * @param name the metric name
+     * @param labels the labels, excluding the metric name
+     * @param amount the amount to add
+     */
+    void increment(CortexEndpoint endpoint, String name, CortexLabels labels, long amount) {
+        Key key = new Key(endpoint, name, labels);
+        CortexCounter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new CortexCounter(name, labels));
+        }
+        counter.add(amount);
+        endpoints.put(key, endpoint);
+    }
+
+    /**
+     * Records an observation in the histogram for the endpoint, metric and labels. If the configured buckets have
+     * changed, the histogram is started again with the new buckets.
+     * @param endpoint the endpoint the histogram is written to
+     * @param name the metric name
+     * @param labels the labels, excluding the metric name
+     * @param value the observed value
+     */
+    void observe(CortexEndpoint endpoint, String name, CortexLabels labels, double value) {
+        double[] currentBounds = getBounds();
+        Key key = new Key(endpoint, name, labels);
+        CortexHistogram histogram = histograms.get(key);
+        if (histogram == null || !histogram.hasBounds(currentBounds)) {
+            histogram = histograms.compute(key, (k, existing) -> existing == null || !existing.hasBounds(currentBounds)
+                    ? new CortexHistogram(name, labels, currentBounds) : existing);
+        }
+        histogram.observe(value);
+        endpoints.put(key, endpoint);
+    }
+
+    private double[] getBounds() {
+        String configured = CortexMetricsGlobalConfig.get().getDurationBuckets();
+        double[] current = bounds;
+        if (current == null || !configured.equals(buckets)) {
+            synchronized (this) {
+                if (bounds == null || !configured.equals(buckets)) {
+                    bounds = parseBounds(configured);
+                    buckets = configured;
+                }
+                current = bounds;
+            }
+        }
+        return current;
+    }
+
+    private static double[] parseBounds(String buckets) {
+        try {
+            return CortexMetricsGlobalConfig.parseBuckets(buckets);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid Cortex histogram buckets " + buckets + ", using the defaults", e);
+            return CortexMetricsGlobalConfig.parseBuckets(CortexMetricsGlobalConfig.DEFAULT_DURATION_BUCKETS);
+        }
+    }
+
+    private void scheduleFlush() {
+        flusher.schedule(() -> {
+            try {
+                flush();
+            } finally {
+                scheduleFlush();
+            }
+        }, CortexMetricsGlobalConfig.get().getAggregationInterval(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the current value of every aggregated series to Cortex, drops the series that expired, then saves the
+     * values to disk.
+     */
+    void flush() {
+        flush(System.currentTimeMillis());
+    }
+
+    /**
+     * Flushes as of the given time.
+     * @param now the current time in milliseconds
+     */
+    void flush(long now) {
+        Map<CortexEndpoint, List<CortexTimeSeries>> byEndpoint = new HashMap<>();
+        for (Map.Entry<Key, CortexCounter> entry : counters.entrySet()) {
+            CortexEndpoint endpoint = endpoints.get(entry.getKey());
+            // Series being created right now are written on the next flush
+            if (endpoint != null) {
+                byEndpoint.computeIfAbsent(endpoint, e -> new ArrayList<>()).add(entry.getValue().collect(now));
+            }
+        }
+        for (Map.Entry<Key, CortexHistogram> entry : histograms.entrySet()) {
+            CortexEndpoint endpoint = endpoints.get(entry.getKey());
+            if (endpoint != null) {
+                byEndpoint.computeIfAbsent(endpoint, e -> new ArrayList<>()).addAll(entry.getValue().collect(now));
+            }
+        }
+        int maxSamplesPerSend = CortexMetricsGlobalConfig.get().getMaxSamplesPerSend();
+        for (Map.Entry<CortexEndpoint, List<CortexTimeSeries>> entry : byEndpoint.entrySet()) {
+            List<CortexTimeSeries> timeSeriesList = entry.getValue();
+            for (int from = 0; from < timeSeriesList.size(); from += maxSamplesPerSend) {
+                try {
+                    CortexRemoteWriter.write(entry.getKey(), timeSeriesList.subList(from,
+                            Math.min(timeSeriesList.size(), from + maxSamplesPerSend)));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to write aggregated metrics to Cortex at " + entry.getKey(), e);
+                    break;
+                }
+            }
+        }
+        long expireBefore = now - TimeUnit.SECONDS.toMillis(
+                (long) CortexMetricsGlobalConfig.get().getAggregationInterval() * EXPIRE_AFTER_INTERVALS);
+        counters.entrySet().removeIf(entry -> entry.getValue().getLastUpdated() < expireBefore);
+        histograms.entrySet().removeIf(entry -> entry.getValue().getLastUpdated() < expireBefore);
+        removeUnusedEndpoints();
+        save();
+    }
+
+    /**
+     * Drops the series of a job, or of all jobs in a folder.
+     * @param fullName the full name of the job or folder
+     */
+    void forget(String fullName) {
+        String prefix = fullName + "/";
+        counters.keySet().removeIf(key -> key.isForJob(fullName, prefix));
+        histograms.keySet().removeIf(key -> key.isForJob(fullName, prefix));
+        removeUnusedEndpoints();
+    }
+
+    private void removeUnusedEndpoints() {
+        endpoints.keySet().removeIf(key -> !counters.containsKey(key) && !histograms.containsKey(key));
+    }
+
+    /**
+     * Saves the aggregated values, replacing the previous file atomically so a crash never leaves it half written.
+     */
+    private synchronized void save() {
+        // Once series were saved, the file is still written when they have all been dropped
+        if (counters.isEmpty() && histograms.isEmpty() && !stateFile.exists()) {
+            return;
+        }
+        // Series are added and dropped concurrently, so the counts are taken from a snapshot
+        List<Saved<CortexCounter>> savedCounters = snapshot(counters);
+        List<Saved<CortexHistogram>> savedHistograms = snapshot(histograms);
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try {
+            Files.createDirectories(stateFile.getParentFile().toPath());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempFile.toPath())))) {
+                out.writeInt(STATE_VERSION);
+                out.writeInt(savedCounters.size());
+                for (Saved<CortexCounter> saved : savedCounters) {
+                    saved.key.writeTo(out, saved.endpoint);
+                    out.writeLong(saved.series.get());
+                }
+                out.writeInt(savedHistograms.size());
+                for (Saved<CortexHistogram> saved : savedHistograms) {
+                    saved.key.writeTo(out, saved.endpoint);
+                    double[] histogramBounds = saved.series.getBounds();
+                    out.writeInt(histogramBounds.length);
+                    for (double bound : histogramBounds) {
+                        out.writeDouble(bound);
+                    }
+                    for (long count : saved.series.getCounts()) {
+                        out.writeLong(count);
+                    }
+                    out.writeDouble(saved.series.getSum());
+                }
+            }
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save aggregated Cortex metrics to " + stateFile, e);
+        }
+    }
+
+    /**
+     * Copies the series that have an endpoint, leaving out those being created right now.
+     */
+    private <T> List<Saved<T>> snapshot(Map<Key, T> series) {
+        List<Saved<T>> saved = new ArrayList<>(series.size());
+        for (Map.Entry<Key, T> entry : series.entrySet()) {
+            CortexEndpoint endpoint = endpoints.get(entry.getKey());
+            if (endpoint != null) {
+                saved.add(new Saved<>(entry.getKey(), endpoint, entry.getValue()));
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Loads the values saved before a restart. Histograms saved with different buckets than currently configured are
+     * discarded.
+     */
+    private void load() {
+        if (!stateFile.exists()) {
+            return;
+        }
+        double[] currentBounds = getBounds();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(stateFile.toPath())))) {
+            int version = in.readInt();
+            if (version != STATE_VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            int numCounters = in.readInt();
+            for (int i = 0; i < numCounters; i++) {
+                CortexEndpoint endpoint = CortexEndpoint.deserialize(in);
+                String name = in.readUTF();
+                CortexLabels labels = CortexLabels.deserialize(in);
+                increment(endpoint, name, labels, in.readLong());
+            }
+            int numHistograms = in.readInt();
+            for (int i = 0; i < numHistograms; i++) {
+                CortexEndpoint endpoint = CortexEndpoint.deserialize(in);
+                String name = in.readUTF();
+                CortexLabels labels = CortexLabels.deserialize(in);
+                double[] savedBounds = new double[in.readInt()];
+                for (int j = 0; j < savedBounds.length; j++) {
+                    savedBounds[j] = in.readDouble();
+                }
+                long[] counts = new long[savedBounds.length + 1];
+                for (int j = 0; j < counts.length; j++) {
+                    counts[j] = in.readLong();
+                }
+                double sum = in.readDouble();
+                if (Arrays.equals(savedBounds, currentBounds)) {
+                    CortexHistogram histogram = new CortexHistogram(name, labels, currentBounds);
+                    histogram.add(counts, sum);
+                    Key key = new Key(endpoint, name, labels);
+                    endpoints.put(key, endpoint);
+                    histograms.put(key, histogram);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load aggregated Cortex metrics from " + stateFile
+                    + ", aggregated series will start again from zero", e);
+        }
+    }
+
+    /**
+     * Identifies a counter or histogram by the destination it is written to, its name and its labels. Like the HTTP
+     * clients, the destination is only the URL and the bearer token, not the timeouts.
+     */
+    private static final class Key {
+        private final String url;
+        private final Secret bearerToken;
+        private final String name;
+        private final CortexLabels labels;
+
+        private Key(CortexEndpoint endpoint, String name, CortexLabels labels) {
+            this.url = endpoint.getUrl();
+            this.bearerToken = endpoint.getBearerToken();
+            this.name = name;
+            this.labels = labels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return url.equals(that.url) && Objects.equals(bearerToken, that.bearerToken) && name.equals(that.name)
+                    && labels.equals(that.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * url.hashCode() + Objects.hashCode(bearerToken)) + name.hashCode())
+                    + labels.hashCode();
+        }
+
+        private boolean isForJob(String fullName, String prefix) {
+            String jobName = labels.get("job_name");
+            return jobName != null && (jobName.equals(fullName) || jobName.startsWith(prefix));
+        }
+
+        /**
+         * Writes the key together with the endpoint settings the series was last updated with.
+         */
+        private void writeTo(DataOutputStream out, CortexEndpoint endpoint) throws IOException {
+            endpoint.serialize(out);
+            out.writeUTF(name);
+            labels.serialize(out);
+        }
+    }
+
+    /**
+     * Loads the aggregated values saved before a restart and resumes writing them once Jenkins has started, so the
+     * series continue even before the next run.
+     */
+    @Extension
+    public static final class StartupListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            if (CortexMetricsGlobalConfig.get().isAggregationEnabled()) {
+                get();
+            }
+        }
+    }
+
+    /**
+     * A counter or histogram being saved, with the endpoint it was last updated with.
+     */
+    private static final class Saved<T> {
+        private final Key key;
+        private final CortexEndpoint endpoint;
+        private final T series;
+
+        private Saved(Key key, CortexEndpoint endpoint, T series) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.series = series;
+        }
+    }
+
+    /**
+     * Drops the series of jobs that are deleted or renamed, a renamed job starting new series under its new name.
+     */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName);
+        }
+
+        private static void forget(String fullName) {
+            CortexAggregator aggregator;
+            synchronized (CortexAggregator.class) {
+                aggregator = instance;
+            }
+            if (aggregator != null) {
+                aggregator.forget(fullName);
+            }
+        }
+    }
+
+    /**
+     * Writes and saves the aggregated series a final time before Jenkins shuts down.
+     */
+    // Runs before the write queue is shut down and the HTTP clients are closed
+    @Extension(ordinal = 200)
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            CortexAggregator aggregator;
+            synchronized (CortexAggregator.class) {
+                aggregator = instance;
+                instance = null;
+            }
+            if (aggregator == null) {
+                return;
+            }
+            aggregator.flusher.shutdownNow();
+            aggregator.flush();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of direct buffers used to serialize and compress remote write requests, so sending a batch does not
+ * allocate several copies of the payload on the heap. Buffers are grown as needed, and very large buffers are not
+ * kept once released.
+ *
+ * @author saville
+ */
+final class CortexBufferPool {
+    /**
+     * The maximum number of idle buffers kept in the pool.
+     */
+    static final int MAX_POOLED = 16;
+
+    /**
+     * The capacity above which released buffers are discarded rather than pooled.
+     */
+    static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+
+    /**
+     * The smallest buffer allocated.
+     */
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private CortexBufferPool() {}
+
+    /**
+     * Retrieves a cleared direct buffer from the pool, allocating a new one if no pooled buffer is large enough.
+     * @param capacity the minimum capacity
+     * @return the buffer, which should be released once no longer used
+     */
+    static ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            if (buffer.capacity() >= capacity) {
+                buffer.clear();
+                return buffer;
+            }
+            // Too small, let it be collected and allocate a larger one in its place
+        }
+        return ByteBuffer.allocateDirect(roundUp(capacity));
+    }
+
+    /**
+     * Rounds a capacity up to the next power of two so a grown buffer is likely to fit the next few requests too.
+     */
+    private static int roundUp(int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        if (capacity > 1 << 30) {
+            return capacity;
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * Retrieves the number of idle buffers in the pool.
+     * @return the number of pooled buffers
+     */
+    static int size() {
+        return pooled.get();
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * @param buffer the buffer, which must no longer be used
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
@@ -0,0 +1,218 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the {@link CortexMetricsContributor} extensions for a run in parallel on a bounded pool and turns their
+ * metrics into series. Each contributor is waited on until its time budget, counted from when it was submitted, has
+ * passed. The latency and result of every applicable contributor is published as the {@code contributor_duration}
+ * metric so slow contributors can be found. Contributed series with the same labels as a series of the run or an
+ * earlier contributed series are dropped, since Cortex may reject a whole request containing a series twice.
+ *
+ * @author saville
+ */
+final class CortexContributions {
+    private static final Logger LOGGER = Logger.getLogger(CortexContributions.class.getName());
+
+    /**
+     * The maximum number of contributors running at the same time.
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * The maximum number of contributors waiting for a thread, further contributors are rejected.
+     */
+    private static final int MAX_QUEUED = 100;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics contributor"));
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private CortexContributions() {}
+
+    /**
+     * Calls the applicable contributors for a run and waits for their metrics.
+     * @param run the job run
+     * @param namespace the namespace to prefix metric names with
+     * @param runLabels the labels of the run, added to every series
+     * @param runSeries the series of the run, which contributed series must not duplicate
+     * @param timestamp the sample timestamp in milliseconds
+     * @param listener the listener for logging
+     * @return the contributed series and the contributor latency series, empty if no contributor is applicable
+     */
+    static List<CortexTimeSeries> collect(Run<?, ?> run, String namespace, Map<String, String> runLabels,
+                                          List<CortexTimeSeries> runSeries, long timestamp, TaskListener listener) {
+        List<Contribution> contributions = new ArrayList<>();
+        for (CortexMetricsContributor contributor : CortexMetricsContributor.all()) {
+            try {
+                if (!contributor.isApplicable(run)) {
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to check Cortex metrics contributor " + contributor.getName(), e);
+                continue;
+            }
+            Contribution contribution = new Contribution(contributor, namespace, runLabels);
+            try {
+                contribution.future = executor.submit(() -> {
+                    contributor.contribute(run, contribution);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                listener.getLogger().println("Too many Cortex metrics contributors running, skipping "
+                        + contributor.getName());
+                contribution.result = "rejected";
+            }
+            contributions.add(contribution);
+        }
+
+        Set<CortexLabels> published = new HashSet<>();
+        for (CortexTimeSeries timeSeries : runSeries) {
+            published.add(timeSeries.getLabels());
+        }
+        List<CortexTimeSeries> timeSeriesList = new ArrayList<>();
+        for (Contribution contribution : contributions) {
+            contribution.await(listener);
+            int duplicates = 0;
+            for (CortexTimeSeries timeSeries : contribution.close(timestamp)) {
+                if (published.add(timeSeries.getLabels())) {
+                    timeSeriesList.add(timeSeries);
+                } else {
+                    duplicates++;
+                }
+            }
+            if (duplicates > 0) {
+                String name = contribution.contributor.getName();
+                LOGGER.log(Level.WARNING, "Dropped {0} series from Cortex metrics contributor {1} with the same "
+                        + "labels as other series", new Object[] {duplicates, name});
+                listener.getLogger().println("Dropped " + duplicates + " series from Cortex metrics contributor "
+                        + name + " with the same labels as other series");
+            }
+        }
+        return timeSeriesList;
+    }
+
+    /**
+     * The metrics added by a single contributor. Metrics added after the contributor ran out of time are ignored.
+     * Contributed series may differ from run to run, so their labels are not cached.
+     */
+    private static final class Contribution implements CortexMetricsContributor.Metrics {
+        private final CortexMetricsContributor contributor;
+        private final String namespace;
+        private final Map<String, String> runLabels;
+        private final long submitted = System.nanoTime();
+        // Guarded by this
+        private final List<CortexLabels> seriesLabels = new ArrayList<>();
+        private final List<Number> values = new ArrayList<>();
+        private boolean closed;
+        // Only accessed by the thread collecting the contributions
+        private Future<?> future;
+        private String result;
+        private long elapsed;
+
+        private Contribution(CortexMetricsContributor contributor, String namespace, Map<String, String> runLabels) {
+            this.contributor = contributor;
+            this.namespace = namespace;
+            this.runLabels = runLabels;
+        }
+
+        @Override
+        public void add(String name, Number value) {
+            add(name, null, value);
+        }
+
+        @Override
+        public void add(String name, Map<String, String> labels, Number value) {
+            if (StringUtils.isBlank(name)) {
+                throw new IllegalArgumentException("Metric name must not be blank");
+            }
+            if (value == null) {
+                throw new IllegalArgumentException("Value of metric " + name + " must not be null");
+            }
+            Map<String, String> allLabels = new HashMap<>(runLabels);
+            if (labels != null) {
+                allLabels.putAll(labels);
+            }
+            allLabels.put("__name__", CortexRunHelper.getMetricName(namespace, name));
+            CortexLabels series = CortexLabels.of(allLabels);
+            synchronized (this) {
+                if (!closed) {
+                    seriesLabels.add(series);
+                    values.add(value);
+                }
+            }
+        }
+
+        /**
+         * Waits for the contributor until its time budget has passed, cancelling it if it is still running.
+         */
+        private void await(TaskListener listener) {
+            if (future == null) {
+                return;
+            }
+            long remaining = TimeUnit.MILLISECONDS.toNanos(contributor.getTimeBudget())
+                    - (System.nanoTime() - submitted);
+            try {
+                future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                result = "success";
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                listener.getLogger().println("Cortex metrics contributor " + contributor.getName()
+                        + " did not finish within " + contributor.getTimeBudget() + "ms");
+                result = "timeout";
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Cortex metrics contributor " + contributor.getName() + " failed",
+                        e.getCause());
+                listener.getLogger().println("Cortex metrics contributor " + contributor.getName() + " failed: "
+                        + e.getCause());
+                result = "failure";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                result = "timeout";
+            }
+            elapsed = System.nanoTime() - submitted;
+        }
+
+        /**
+         * Stops accepting metrics and creates the series for the metrics added so far and the contributor latency.
+         */
+        private synchronized List<CortexTimeSeries> close(long timestamp) {
+            closed = true;
+            List<CortexTimeSeries> timeSeriesList = new ArrayList<>(seriesLabels.size() + 1);
+            for (int i = 0; i < seriesLabels.size(); i++) {
+                timeSeriesList.add(new CortexTimeSeries(seriesLabels.get(i), values.get(i).doubleValue(),
+                        timestamp));
+            }
+            Map<String, String> latencyLabels = new HashMap<>(runLabels);
+            latencyLabels.put("contributor", contributor.getName());
+            latencyLabels.put("contributor_result", result);
+            latencyLabels.put("__name__", CortexRunHelper.getMetricName(namespace, "contributor_duration"));
+            timeSeriesList.add(new CortexTimeSeries(CortexLabels.of(latencyLabels), elapsed / 1e9, timestamp));
+            return timeSeriesList;
+        }
+    }
+}
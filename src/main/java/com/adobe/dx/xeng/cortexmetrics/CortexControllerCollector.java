@@ -0,0 +1,176 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically publishes gauges describing the whole controller when enabled in the global configuration: the length
+ * of the build queue, busy and idle executors in total and per label, and online and offline nodes. Each collection
+ * takes one snapshot of the queue and a single pass over the computers, so it stays cheap on controllers with
+ * thousands of agents. The gauges are written to the globally configured endpoint.
+ *
+ * @author saville
+ */
+final class CortexControllerCollector {
+    private static final Logger LOGGER = Logger.getLogger(CortexControllerCollector.class.getName());
+
+    // Labels of controller series are cached separately from those of any job
+    private static final String CONTROLLER = "";
+
+    private static final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics controller collector"));
+
+    private static boolean scheduled;
+
+    private CortexControllerCollector() {}
+
+    private static synchronized void start() {
+        if (!scheduled) {
+            scheduled = true;
+            scheduleCollect();
+        }
+    }
+
+    private static void scheduleCollect() {
+        collector.schedule(() -> {
+            try {
+                if (CortexMetricsGlobalConfig.get().isControllerMetricsEnabled()) {
+                    collect();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to collect controller metrics for Cortex", e);
+            } finally {
+                scheduleCollect();
+            }
+        }, CortexMetricsGlobalConfig.get().getControllerMetricsInterval(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Collects and sends the controller gauges.
+     */
+    static void collect() {
+        CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+        if (StringUtils.isBlank(config.getUrl()) || config.getBearerToken() == null
+                || StringUtils.isBlank(config.getBearerToken().getPlainText())) {
+            LOGGER.log(Level.FINE, "Cortex URL or bearer token is not set, cannot publish controller metrics");
+            return;
+        }
+        String namespace = StringUtils.isBlank(config.getNamespace()) ? CortexMetricsGlobalConfig.DEFAULT_NAMESPACE
+                : config.getNamespace();
+        List<CortexTimeSeries> timeSeriesList = createTimeSeries(namespace, System.currentTimeMillis());
+        CortexEndpoint endpoint = new CortexEndpoint(config.getUrl(), config.getBearerToken(),
+                config.getConnectTimeout(), config.getSocketTimeout(), config.getConnectionRequestTimeout(),
+                config.getWriteTimeout());
+        try {
+            CortexRemoteWriter.write(endpoint, timeSeriesList);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to write controller metrics to Cortex at " + endpoint, e);
+        }
+    }
+
+    static List<CortexTimeSeries> createTimeSeries(String namespace, long timestamp) {
+        Jenkins jenkins = Jenkins.get();
+        List<CortexTimeSeries> timeSeriesList = new ArrayList<>();
+
+        int buildable = 0;
+        int blocked = 0;
+        int waiting = 0;
+        Queue.Item[] items = jenkins.getQueue().getItems();
+        for (Queue.Item item : items) {
+            if (item instanceof Queue.BuildableItem) {
+                buildable++;
+            } else if (item instanceof Queue.BlockedItem) {
+                blocked++;
+            } else {
+                waiting++;
+            }
+        }
+        add(timeSeriesList, namespace, "queue_length", null, null, items.length, timestamp);
+        add(timeSeriesList, namespace, "queue_buildable", null, null, buildable, timestamp);
+        add(timeSeriesList, namespace, "queue_blocked", null, null, blocked, timestamp);
+        add(timeSeriesList, namespace, "queue_waiting", null, null, waiting, timestamp);
+
+        int online = 0;
+        int offline = 0;
+        int busy = 0;
+        int idle = 0;
+        Map<String, int[]> executorsByLabel = new HashMap<>();
+        for (Computer computer : jenkins.getComputers()) {
+            Node node = computer.getNode();
+            if (node == null) {
+                continue;
+            }
+            if (computer.isOffline()) {
+                offline++;
+                continue;
+            }
+            online++;
+            int computerBusy = computer.countBusy();
+            int computerIdle = computer.countIdle();
+            busy += computerBusy;
+            idle += computerIdle;
+            LabelAtom selfLabel = node.getSelfLabel();
+            for (LabelAtom label : node.getAssignedLabels()) {
+                // Node names would create a series per node
+                if (!label.equals(selfLabel)) {
+                    int[] counts = executorsByLabel.computeIfAbsent(label.getName(), l -> new int[2]);
+                    counts[0] += computerBusy;
+                    counts[1] += computerIdle;
+                }
+            }
+        }
+        add(timeSeriesList, namespace, "nodes", "state", "online", online, timestamp);
+        add(timeSeriesList, namespace, "nodes", "state", "offline", offline, timestamp);
+        add(timeSeriesList, namespace, "executors_busy", null, null, busy, timestamp);
+        add(timeSeriesList, namespace, "executors_idle", null, null, idle, timestamp);
+        for (Map.Entry<String, int[]> entry : executorsByLabel.entrySet()) {
+            add(timeSeriesList, namespace, "label_executors_busy", "label", entry.getKey(), entry.getValue()[0],
+                    timestamp);
+            add(timeSeriesList, namespace, "label_executors_idle", "label", entry.getKey(), entry.getValue()[1],
+                    timestamp);
+        }
+        return timeSeriesList;
+    }
+
+    private static void add(List<CortexTimeSeries> timeSeriesList, String namespace, String name, String labelName,
+                            String labelValue, double value, long timestamp) {
+        Map<String, String> seriesLabels = labelName == null ? Collections.emptyMap()
+                : Collections.singletonMap(labelName, labelValue);
+        // The same series are sent on every collection, so reuse their encoded labels
+        CortexLabels labels = CortexLabels.forSeries(CONTROLLER, namespace + "_jenkins_" + name, seriesLabels);
+        timeSeriesList.add(new CortexTimeSeries(labels, value, timestamp));
+    }
+
+    /**
+     * Starts collecting once Jenkins has started. Collection is skipped while disabled, so it can be enabled without
+     * a restart.
+     */
+    @Extension
+    public static final class StartupListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            start();
+        }
+    }
+}
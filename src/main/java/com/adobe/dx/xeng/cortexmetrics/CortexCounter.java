@@ -0,0 +1,58 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter written to Cortex as a single series. Increments only update a striped adder, so they never
+ * block each other, and the labels of the series are created once so they are only encoded once.
+ *
+ * @author saville
+ */
+final class CortexCounter {
+    private final LongAdder value = new LongAdder();
+    private final CortexLabels seriesLabels;
+    private volatile long lastUpdated = System.currentTimeMillis();
+
+    /**
+     * Creates a counter starting at zero.
+     * @param name the metric name
+     * @param labels the labels of the counter, excluding the metric name
+     */
+    CortexCounter(String name, CortexLabels labels) {
+        seriesLabels = labels.with("__name__", name);
+    }
+
+    /**
+     * Adds to the counter.
+     * @param amount the amount to add, never negative
+     */
+    void add(long amount) {
+        value.add(amount);
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Retrieves when the counter was last added to, or created if it never was.
+     * @return the time in milliseconds
+     */
+    long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    /**
+     * Retrieves the current value.
+     * @return the value
+     */
+    long get() {
+        return value.sum();
+    }
+
+    /**
+     * Creates a sample of the counter.
+     * @param timestamp the sample timestamp in milliseconds
+     * @return the series
+     */
+    CortexTimeSeries collect(long timestamp) {
+        return new CortexTimeSeries(seriesLabels, value.sum(), timestamp);
+    }
+}
@@ -0,0 +1,203 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexResolvedConfig;
+import hudson.util.Secret;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * A Cortex remote write destination and the timeouts used when writing to it. Series queued for the same endpoint
+ * may be sent in the same request.
+ *
+ * <p>The Authorization header is built once per endpoint rather than on every request, and the encrypted form of the
+ * bearer token is only created the first time the endpoint is serialized. Tokens read back are decrypted once per
+ * distinct encrypted value. Endpoints of a resolved configuration are shared until the configuration changes, so
+ * neither is redone for every publish.</p>
+ *
+ * @author saville
+ */
+final class CortexEndpoint {
+    /**
+     * The maximum number of decrypted bearer tokens kept.
+     */
+    private static final int MAX_DECRYPTED = 16;
+
+    private static final Map<String, Secret> decrypted = Collections.synchronizedMap(
+            new LinkedHashMap<String, Secret>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Secret> eldest) {
+                    return size() > MAX_DECRYPTED;
+                }
+            });
+
+    // Keyed on the resolved configurations themselves, which are replaced rather than changed when settings change
+    private static final Map<CortexResolvedConfig, CortexEndpoint> configured =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String url;
+    private final Secret bearerToken;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int connectionRequestTimeout;
+    private final int writeTimeout;
+    private final String authorization;
+    // Encrypted on first use, encrypting is expensive and every call produces a different value
+    private volatile String encryptedBearerToken;
+
+    /**
+     * Creates an endpoint using the default timeouts.
+     * @param url the Cortex write URL
+     * @param bearerToken the bearer token
+     */
+    CortexEndpoint(String url, Secret bearerToken) {
+        this(url, bearerToken, CortexMetricsGlobalConfig.DEFAULT_CONNECT_TIMEOUT,
+                CortexMetricsGlobalConfig.DEFAULT_SOCKET_TIMEOUT,
+                CortexMetricsGlobalConfig.DEFAULT_CONNECTION_REQUEST_TIMEOUT,
+                CortexMetricsGlobalConfig.DEFAULT_WRITE_TIMEOUT);
+    }
+
+    /**
+     * Creates an endpoint.
+     * @param url the Cortex write URL
+     * @param bearerToken the bearer token
+     * @param connectTimeout the connect timeout in seconds
+     * @param socketTimeout the socket timeout in seconds
+     * @param connectionRequestTimeout the timeout waiting for a pooled connection in seconds
+     * @param writeTimeout the total time a single write may take in seconds
+     */
+    CortexEndpoint(String url, Secret bearerToken, int connectTimeout, int socketTimeout,
+                   int connectionRequestTimeout, int writeTimeout) {
+        this.url = url;
+        this.bearerToken = bearerToken;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        this.writeTimeout = writeTimeout;
+        this.authorization = bearerToken == null ? null : "Bearer " + bearerToken.getPlainText();
+    }
+
+    /**
+     * Retrieves the endpoint of a resolved configuration, created once per configuration.
+     * @param config the resolved configuration
+     * @return the endpoint
+     */
+    static CortexEndpoint forConfig(CortexResolvedConfig config) {
+        return configured.computeIfAbsent(config, c -> new CortexEndpoint(c.getUrl(), c.getBearerToken(),
+                c.getConnectTimeout(), c.getSocketTimeout(), c.getConnectionRequestTimeout(), c.getWriteTimeout()));
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    Secret getBearerToken() {
+        return bearerToken;
+    }
+
+    /**
+     * Retrieves the value of the Authorization header sent with every request.
+     * @return the header value, or null if there is no bearer token
+     */
+    String getAuthorization() {
+        return authorization;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Writes the endpoint, only ever storing the bearer token encrypted.
+     * @param out the output to write to
+     * @throws IOException if the endpoint could not be written
+     */
+    void serialize(DataOutput out) throws IOException {
+        out.writeUTF(url);
+        out.writeUTF(getEncryptedBearerToken());
+        out.writeInt(connectTimeout);
+        out.writeInt(socketTimeout);
+        out.writeInt(connectionRequestTimeout);
+        out.writeInt(writeTimeout);
+    }
+
+    /**
+     * Reads an endpoint written by {@link #serialize(DataOutput)}.
+     * @param in the input to read from
+     * @return the endpoint
+     * @throws IOException if the endpoint could not be read
+     */
+    static CortexEndpoint deserialize(DataInput in) throws IOException {
+        String url = in.readUTF();
+        String bearerToken = in.readUTF();
+        CortexEndpoint endpoint = new CortexEndpoint(url, decrypt(bearerToken), in.readInt(), in.readInt(),
+                in.readInt(), in.readInt());
+        endpoint.encryptedBearerToken = bearerToken;
+        return endpoint;
+    }
+
+    private String getEncryptedBearerToken() {
+        String encrypted = encryptedBearerToken;
+        if (encrypted == null) {
+            encrypted = bearerToken == null ? "" : bearerToken.getEncryptedValue();
+            encryptedBearerToken = encrypted;
+        }
+        return encrypted;
+    }
+
+    private static Secret decrypt(String encrypted) {
+        if (encrypted.isEmpty()) {
+            return null;
+        }
+        Secret secret = decrypted.get(encrypted);
+        if (secret == null) {
+            secret = Secret.fromString(encrypted);
+            decrypted.put(encrypted, secret);
+        }
+        return secret;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CortexEndpoint)) {
+            return false;
+        }
+        CortexEndpoint that = (CortexEndpoint) o;
+        return url.equals(that.url) && Objects.equals(bearerToken, that.bearerToken)
+                && connectTimeout == that.connectTimeout && socketTimeout == that.socketTimeout
+                && connectionRequestTimeout == that.connectionRequestTimeout && writeTimeout == that.writeTimeout;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, bearerToken, connectTimeout, socketTimeout, connectionRequestTimeout, writeTimeout);
+    }
+
+    @Override
+    public String toString() {
+        // Never include the bearer token
+        return url;
+    }
+}
@@ -0,0 +1,138 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Prometheus style histogram of observations with the same labels, written to Cortex as cumulative
+ * {@code _bucket}, {@code _sum} and {@code _count} series. Observations only increment striped adders, so they never
+ * block each other, and the labels of every series are created once so they are only encoded once.
+ *
+ * @author saville
+ */
+final class CortexHistogram {
+    private final double[] bounds;
+    // Observations per bucket, the last one being +Inf
+    private final LongAdder[] counts;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final CortexLabels[] bucketLabels;
+    private final CortexLabels sumLabels;
+    private final CortexLabels countLabels;
+    private volatile long lastUpdated = System.currentTimeMillis();
+
+    /**
+     * Creates an empty histogram.
+     * @param name the metric name, without the {@code _bucket}, {@code _sum} or {@code _count} suffix
+     * @param labels the labels of the histogram, excluding the metric name
+     * @param bounds the upper bounds of the buckets in ascending order, excluding +Inf
+     */
+    CortexHistogram(String name, CortexLabels labels, double[] bounds) {
+        this.bounds = bounds;
+        counts = new LongAdder[bounds.length + 1];
+        bucketLabels = new CortexLabels[bounds.length + 1];
+        CortexLabels bucketBase = labels.with("__name__", name + "_bucket");
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            bucketLabels[i] = bucketBase.with("le", i < bounds.length ? formatBound(bounds[i]) : "+Inf");
+        }
+        sumLabels = labels.with("__name__", name + "_sum");
+        countLabels = labels.with("__name__", name + "_count");
+    }
+
+    double[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Whether this histogram uses the given bucket bounds instance.
+     * @param bounds the bounds
+     * @return true if the bounds are the same instance
+     */
+    boolean hasBounds(double[] bounds) {
+        return this.bounds == bounds;
+    }
+
+    /**
+     * Retrieves the number of observations in each bucket, not cumulative, the last one being +Inf.
+     * @return the counts
+     */
+    long[] getCounts() {
+        long[] values = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            values[i] = counts[i].sum();
+        }
+        return values;
+    }
+
+    /**
+     * Retrieves the sum of all observations.
+     * @return the sum
+     */
+    double getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Adds previously recorded observations, such as those saved before a restart.
+     * @param values the number of observations in each bucket as returned by {@link #getCounts()}
+     * @param valuesSum the sum of the observations
+     */
+    void add(long[] values, double valuesSum) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].add(values[i]);
+        }
+        sum.add(valuesSum);
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Records an observation.
+     * @param value the observed value
+     */
+    void observe(double value) {
+        int index = Arrays.binarySearch(bounds, value);
+        // Bounds are inclusive upper bounds
+        counts[index >= 0 ? index : -index - 1].increment();
+        sum.add(value);
+        lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Retrieves when the last observation was recorded, or the histogram was created if there never was one.
+     * @return the time in milliseconds
+     */
+    long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    /**
+     * Creates a sample of every series of the histogram.
+     * @param timestamp the sample timestamp in milliseconds
+     * @return the series
+     */
+    List<CortexTimeSeries> collect(long timestamp) {
+        List<CortexTimeSeries> timeSeriesList = new ArrayList<>(counts.length + 2);
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i].sum();
+            timeSeriesList.add(new CortexTimeSeries(bucketLabels[i], cumulative, timestamp));
+        }
+        // Use the +Inf bucket as the count so the two are always consistent
+        timeSeriesList.add(new CortexTimeSeries(countLabels, cumulative, timestamp));
+        timeSeriesList.add(new CortexTimeSeries(sumLabels, sum.sum(), timestamp));
+        return timeSeriesList;
+    }
+
+    /**
+     * Formats a bucket bound for the {@code le} label, without a fraction for whole numbers as Prometheus does.
+     */
+    private static String formatBound(double bound) {
+        if (bound == Math.rint(bound) && Math.abs(bound) < 1e15) {
+            return Long.toString((long) bound);
+        }
+        return Double.toString(bound);
+    }
+}
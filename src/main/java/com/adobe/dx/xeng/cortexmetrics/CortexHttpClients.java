@@ -0,0 +1,232 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.PeriodicWork;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.Secret;
+import jenkins.util.Timer;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the HTTP clients used to write to Cortex. Each Cortex host and tenant (bearer token) gets its own client
+ * and connection pool sized from the global configuration, so a slow tenant cannot starve the connections used to
+ * write to others. Folders may point at other hosts and tenants, but pool sizing, idle timeout and time to live are
+ * only configured globally and apply to each pool alike. Clients that have not been used for a while are closed, and
+ * all clients are rebuilt whenever the global configuration is saved.
+ *
+ * @author saville
+ */
+final class CortexHttpClients {
+    private static final Logger LOGGER = Logger.getLogger(CortexHttpClients.class.getName());
+
+    /**
+     * How long to keep a removed client open for requests still using it, in seconds.
+     */
+    private static final long CLOSE_DELAY = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * How long a client may go unused before it is closed, in milliseconds.
+     */
+    private static final long UNUSED_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ConcurrentMap<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+    private static volatile Function<CortexEndpoint, HttpClient> clientFactory = CortexHttpClients::createClient;
+
+    private CortexHttpClients() {}
+
+    /**
+     * Retrieves the HTTP client for an endpoint, creating it from the global configuration if needed.
+     * @param endpoint the endpoint to write to
+     * @return the HTTP client
+     */
+    static HttpClient get(CortexEndpoint endpoint) {
+        PooledClient pooled = clients.computeIfAbsent(ClientKey.of(endpoint),
+                key -> new PooledClient(clientFactory.apply(endpoint)));
+        pooled.lastUsed = System.currentTimeMillis();
+        return pooled.client;
+    }
+
+    /**
+     * Replaces the factory used to create clients for new endpoints, discarding any existing clients.
+     * @param factory the client factory
+     */
+    static void setClientFactory(Function<CortexEndpoint, HttpClient> factory) {
+        clientFactory = factory;
+        reset();
+    }
+
+    /**
+     * Removes all clients so the next requests pick up the current configuration. Removed clients are closed once
+     * any requests still using them have had time to complete.
+     */
+    static void reset() {
+        Iterator<PooledClient> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            PooledClient pooled = iterator.next();
+            iterator.remove();
+            closeLater(pooled);
+        }
+    }
+
+    private static void evictUnused() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ClientKey, PooledClient> entry : clients.entrySet()) {
+            PooledClient pooled = entry.getValue();
+            if (now - pooled.lastUsed > UNUSED_TIMEOUT && clients.remove(entry.getKey(), pooled)) {
+                LOGGER.log(Level.FINE, "Closing unused Cortex HTTP client for {0}", entry.getKey().host);
+                closeLater(pooled);
+            }
+        }
+    }
+
+    private static void closeLater(PooledClient pooled) {
+        if (pooled.client instanceof Closeable) {
+            Timer.get().schedule(() -> close((Closeable) pooled.client), CLOSE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void close(Closeable client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close Cortex HTTP client", e);
+        }
+    }
+
+    private static HttpClient createClient(CortexEndpoint endpoint) {
+        CortexMetricsGlobalConfig globalConfig = CortexMetricsGlobalConfig.get();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                globalConfig.getConnectionTimeToLive(), TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(globalConfig.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(globalConfig.getMaxConnectionsPerRoute());
+
+        // Never keep a connection alive for longer than configured, even if the server allows it
+        long keepAlive = TimeUnit.SECONDS.toMillis(globalConfig.getConnectionKeepAlive());
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+        };
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(globalConfig.getConnectionIdleTimeout(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * A client and when it was last used.
+     */
+    private static final class PooledClient {
+        private final HttpClient client;
+        private volatile long lastUsed;
+
+        private PooledClient(HttpClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Identifies the Cortex host and tenant a client is used for.
+     */
+    private static final class ClientKey {
+        private final String host;
+        private final Secret bearerToken;
+
+        private ClientKey(String host, Secret bearerToken) {
+            this.host = host;
+            this.bearerToken = bearerToken;
+        }
+
+        private static ClientKey of(CortexEndpoint endpoint) {
+            URI uri = URI.create(endpoint.getUrl());
+            return new ClientKey(uri.getScheme() + "://" + uri.getAuthority(), endpoint.getBearerToken());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey that = (ClientKey) o;
+            return host.equals(that.host) && Objects.equals(bearerToken, that.bearerToken);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, bearerToken);
+        }
+    }
+
+    /**
+     * Rebuilds the HTTP clients when the global configuration changes.
+     */
+    @Extension
+    public static final class ConfigListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof CortexMetricsGlobalConfig) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Closes clients that have not been used recently.
+     */
+    @Extension
+    public static final class UnusedClientEviction extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            evictUnused();
+        }
+    }
+
+    /**
+     * Closes all clients when Jenkins shuts down.
+     */
+    @Extension
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            Iterator<PooledClient> iterator = clients.values().iterator();
+            while (iterator.hasNext()) {
+                PooledClient pooled = iterator.next();
+                iterator.remove();
+                if (pooled.client instanceof Closeable) {
+                    close((Closeable) pooled.client);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.google.protobuf.CodedOutputStream;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An immutable set of labels identifying a series, sorted by name as Prometheus remote write expects. The hash is
+ * calculated up front so label sets are cheap to compare and to hash onto shards, and the {@code prometheus.Label}
+ * entries are encoded in the protobuf wire format once, then copied into every write request as is. The labels of the
+ * series of a job are cached per job, keyed on the labels as given, so repeated publishes for the same job neither sort
+ * nor encode the same labels again. Both the jobs and the label sets of each job are evicted least recently used first,
+ * so the labels of jobs that run often stay cached however many jobs there are.
+ *
+ * @author saville
+ */
+final class CortexLabels {
+    /**
+     * The maximum number of jobs with cached labels, the least recently used job is evicted once exceeded.
+     */
+    static final int MAX_CACHED_JOBS = 1000;
+
+    /**
+     * The maximum number of label sets cached per job, the least recently used label set is evicted once exceeded.
+     */
+    static final int MAX_CACHED_PER_JOB = 128;
+
+    // Field tags from prometheus.proto
+    private static final int TIMESERIES_LABELS_TAG = 1 << 3 | 2;
+    private static final int LABEL_NAME_TAG = 1 << 3 | 2;
+    private static final int LABEL_VALUE_TAG = 2 << 3 | 2;
+
+    // Only held for lookups and insertions, labels are sorted and encoded outside the locks
+    private static final Map<String, Map<CacheKey, CortexLabels>> cache = newLruMap(MAX_CACHED_JOBS);
+
+    private final String[] names;
+    private final String[] values;
+    private final int hash;
+    // Encoded on first use
+    private volatile byte[] encoded;
+
+    /**
+     * Creates labels from names and values already sorted by name without duplicates.
+     */
+    private CortexLabels(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+        int h = 0;
+        for (int i = 0; i < names.length; i++) {
+            h = 31 * (31 * h + names[i].hashCode()) + values[i].hashCode();
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Creates labels from names and values in any order.
+     * @param names the label names
+     * @param values the label values in the same order as the names
+     * @return the labels
+     * @throws IllegalArgumentException if the names and values do not match or a name is repeated
+     */
+    static CortexLabels of(String[] names, String[] values) {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Label names and values must have the same length");
+        }
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+        String[] sortedNames = new String[names.length];
+        String[] sortedValues = new String[names.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = Objects.requireNonNull(names[order[i]], "Label name must not be null");
+            sortedValues[i] = Objects.requireNonNull(values[order[i]], "Label value must not be null");
+            if (i > 0 && sortedNames[i].equals(sortedNames[i - 1])) {
+                throw new IllegalArgumentException("Duplicate label name " + sortedNames[i]);
+            }
+        }
+        return new CortexLabels(sortedNames, sortedValues);
+    }
+
+    /**
+     * Creates labels from a map.
+     * @param labels the labels
+     * @return the labels
+     */
+    static CortexLabels of(Map<String, String> labels) {
+        String[] names = new String[labels.size()];
+        String[] values = new String[labels.size()];
+        int i = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            names[i] = label.getKey();
+            values[i] = label.getValue();
+            i++;
+        }
+        return of(names, values);
+    }
+
+    /**
+     * Retrieves the labels of a series of a job, which already have their labels sorted and encoded if the job
+     * published the same series before. Only use this for series published for every run of a job, labels varying
+     * from run to run would just fill the cache.
+     * @param jobName the full name of the job
+     * @param name the metric name
+     * @param labels the labels, excluding the metric name
+     * @return the labels including the metric name
+     */
+    static CortexLabels forSeries(String jobName, String name, Map<String, String> labels) {
+        Map<CacheKey, CortexLabels> jobCache = cache.computeIfAbsent(jobName, j -> newLruMap(MAX_CACHED_PER_JOB));
+        // Looked up with the given labels, only copied when they are added to the cache
+        CortexLabels cached = jobCache.get(new CacheKey(name, labels));
+        if (cached != null) {
+            return cached;
+        }
+        CortexLabels created = of(labels).with("__name__", name);
+        cached = jobCache.putIfAbsent(new CacheKey(name, new HashMap<>(labels)), created);
+        return cached != null ? cached : created;
+    }
+
+    private static <K, V> Map<K, V> newLruMap(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * Removes the cached labels of a job, or of all jobs in a folder.
+     * @param fullName the full name of the job or folder
+     */
+    static void forget(String fullName) {
+        String prefix = fullName + "/";
+        synchronized (cache) {
+            cache.keySet().removeIf(jobName -> jobName.equals(fullName) || jobName.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Creates labels with an additional label, replacing any existing label with the same name.
+     * @param name the label name
+     * @param value the label value
+     * @return the new labels
+     */
+    CortexLabels with(String name, String value) {
+        int index = Arrays.binarySearch(names, name);
+        if (index >= 0) {
+            if (values[index].equals(value)) {
+                return this;
+            }
+            String[] newValues = values.clone();
+            newValues[index] = value;
+            return new CortexLabels(names, newValues);
+        }
+        int insertAt = -index - 1;
+        String[] newNames = new String[names.length + 1];
+        String[] newValues = new String[names.length + 1];
+        System.arraycopy(names, 0, newNames, 0, insertAt);
+        System.arraycopy(values, 0, newValues, 0, insertAt);
+        newNames[insertAt] = name;
+        newValues[insertAt] = value;
+        System.arraycopy(names, insertAt, newNames, insertAt + 1, names.length - insertAt);
+        System.arraycopy(values, insertAt, newValues, insertAt + 1, names.length - insertAt);
+        return new CortexLabels(newNames, newValues);
+    }
+
+    /**
+     * Writes the names and values.
+     * @param out the output to write to
+     * @throws IOException if the labels could not be written
+     */
+    void serialize(DataOutput out) throws IOException {
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeUTF(names[i]);
+            out.writeUTF(values[i]);
+        }
+    }
+
+    /**
+     * Reads labels written by {@link #serialize(DataOutput)}.
+     * @param in the input to read from
+     * @return the labels
+     * @throws IOException if the labels could not be read
+     */
+    static CortexLabels deserialize(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid number of labels " + size);
+        }
+        String[] names = new String[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = in.readUTF();
+            values[i] = in.readUTF();
+        }
+        try {
+            return of(names, values);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid labels", e);
+        }
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Retrieves the value of a label.
+     * @param name the label name
+     * @return the value, or null if there is no such label
+     */
+    String get(String name) {
+        int index = Arrays.binarySearch(names, name);
+        return index >= 0 ? values[index] : null;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Retrieves the size of the encoded labels.
+     * @return the size in bytes
+     */
+    int getEncodedSize() {
+        return getEncoded().length;
+    }
+
+    /**
+     * Writes the encoded labels as the labels field of a {@code TimeSeries} message.
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    void writeTo(CodedOutputStream out) throws IOException {
+        out.writeRawBytes(getEncoded());
+    }
+
+    private byte[] getEncoded() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            bytes = encode(names, values);
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(String[] names, String[] values) {
+        int[] labelSizes = new int[names.length];
+        int size = 0;
+        for (int i = 0; i < names.length; i++) {
+            labelSizes[i] = computeStringFieldSize(names[i]) + computeStringFieldSize(values[i]);
+            size += 1 + CodedOutputStream.computeUInt32SizeNoTag(labelSizes[i]) + labelSizes[i];
+        }
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            for (int i = 0; i < names.length; i++) {
+                out.writeUInt32NoTag(TIMESERIES_LABELS_TAG);
+                out.writeUInt32NoTag(labelSizes[i]);
+                writeStringField(out, LABEL_NAME_TAG, names[i]);
+                writeStringField(out, LABEL_VALUE_TAG, values[i]);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Only thrown if the sizes were calculated incorrectly
+            throw new IllegalStateException("Failed to encode labels", e);
+        }
+        return bytes;
+    }
+
+    // Empty strings are omitted exactly as the generated protobuf code does
+    private static int computeStringFieldSize(String value) {
+        return value.isEmpty() ? 0 : 1 + CodedOutputStream.computeStringSizeNoTag(value);
+    }
+
+    private static void writeStringField(CodedOutputStream out, int tag, String value) throws IOException {
+        if (!value.isEmpty()) {
+            out.writeUInt32NoTag(tag);
+            out.writeStringNoTag(value);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CortexLabels)) {
+            return false;
+        }
+        CortexLabels that = (CortexLabels) o;
+        return hash == that.hash && Arrays.equals(names, that.names) && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(names[i]).append("=\"").append(values[i]).append('"');
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Identifies a series of a job by its metric name and labels in any order.
+     */
+    private static final class CacheKey {
+        private final String name;
+        private final Map<String, String> labels;
+        private final int hash;
+
+        private CacheKey(String name, Map<String, String> labels) {
+            this.name = name;
+            this.labels = labels;
+            this.hash = 31 * name.hashCode() + labels.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return hash == that.hash && name.equals(that.name) && labels.equals(that.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Removes the cached labels of deleted and renamed jobs.
+     */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName);
+        }
+    }
+}
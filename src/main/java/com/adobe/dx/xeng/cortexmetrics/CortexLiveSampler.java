@@ -0,0 +1,209 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes metrics for runs while they are in progress, when enabled in the global configuration, so long runs can be
+ * followed before they complete. A single thread samples every running build at the configured interval and sends the
+ * samples for all of them in one write request per endpoint, rather than each run scheduling its own sends. Running
+ * builds are only tracked while live metrics are enabled, as they start and finish, so nothing is scanned to sample
+ * them. The executors are only scanned once for the builds already running when live metrics are enabled. Sampling
+ * starts and stops when the global configuration is saved.
+ *
+ * @author saville
+ */
+final class CortexLiveSampler {
+    private static final Logger LOGGER = Logger.getLogger(CortexLiveSampler.class.getName());
+
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics live sampler"));
+    // The publisher for each running build, created on the first sample so configuration is only resolved once
+    private static final Map<Run<?, ?>, LiveRun> running = new ConcurrentHashMap<>();
+    // Guarded by the class, the generation changes whenever sampling is stopped so a sample already running when it is
+    // started again does not schedule a second chain of samples
+    private static ScheduledFuture<?> next;
+    private static int generation;
+
+    private CortexLiveSampler() {}
+
+    private static synchronized void start() {
+        if (next == null) {
+            scheduleSample(generation);
+        }
+    }
+
+    /**
+     * Starts sampling, including the builds that are already running.
+     */
+    private static void enable() {
+        for (Computer computer : Jenkins.get().getComputers()) {
+            // Includes the flyweight executors running Pipelines
+            for (Executor executor : computer.getAllExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof Run && ((Run<?, ?>) executable).isBuilding()) {
+                    running.putIfAbsent((Run<?, ?>) executable, new LiveRun());
+                }
+            }
+        }
+        start();
+    }
+
+    /**
+     * Stops sampling and forgets the running builds.
+     */
+    private static synchronized void disable() {
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+            generation++;
+        }
+        running.clear();
+    }
+
+    private static synchronized void scheduleSample(int scheduledGeneration) {
+        next = sampler.schedule(() -> {
+            try {
+                if (CortexMetricsGlobalConfig.get().isLiveMetricsEnabled()) {
+                    sample();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to sample in-progress runs for Cortex", e);
+            } finally {
+                synchronized (CortexLiveSampler.class) {
+                    if (generation == scheduledGeneration) {
+                        scheduleSample(scheduledGeneration);
+                    }
+                }
+            }
+        }, CortexMetricsGlobalConfig.get().getLiveMetricsInterval(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends a sample for every running build.
+     */
+    static void sample() {
+        long now = System.currentTimeMillis();
+        Map<CortexEndpoint, List<CortexTimeSeries>> byEndpoint = new HashMap<>();
+        for (Map.Entry<Run<?, ?>, LiveRun> entry : running.entrySet()) {
+            CortexPublisher publisher = entry.getValue().getPublisher(entry.getKey());
+            if (publisher != null) {
+                byEndpoint.computeIfAbsent(publisher.getEndpoint(), e -> new ArrayList<>())
+                        .addAll(publisher.createLiveTimeSeries(now));
+            }
+        }
+        int maxSamplesPerSend = CortexMetricsGlobalConfig.get().getMaxSamplesPerSend();
+        for (Map.Entry<CortexEndpoint, List<CortexTimeSeries>> entry : byEndpoint.entrySet()) {
+            List<CortexTimeSeries> timeSeriesList = entry.getValue();
+            for (int from = 0; from < timeSeriesList.size(); from += maxSamplesPerSend) {
+                try {
+                    CortexRemoteWriter.write(entry.getKey(), timeSeriesList.subList(from,
+                            Math.min(timeSeriesList.size(), from + maxSamplesPerSend)));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to write in-progress run metrics to Cortex at "
+                            + entry.getKey(), e);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A running build and its publisher.
+     */
+    private static final class LiveRun {
+        private CortexPublisher publisher;
+        private boolean invalid;
+
+        /**
+         * Retrieves the publisher, or null if the job has no valid Cortex configuration.
+         */
+        synchronized CortexPublisher getPublisher(Run<?, ?> run) {
+            if (publisher == null && !invalid) {
+                try {
+                    publisher = new CortexPublisher(run, null, null, null, Collections.emptyMap());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.log(Level.FINE, "Not sampling " + run + " for Cortex", e);
+                    invalid = true;
+                }
+            }
+            return publisher;
+        }
+    }
+
+    /**
+     * Tracks the running builds while live metrics are enabled.
+     */
+    @Extension
+    public static final class Listener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            if (CortexMetricsGlobalConfig.get().isLiveMetricsEnabled()) {
+                running.put(run, new LiveRun());
+                start();
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            running.remove(run);
+        }
+    }
+
+    /**
+     * Starts or stops sampling when the global configuration is saved.
+     */
+    @Extension
+    public static final class ConfigListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof CortexMetricsGlobalConfig) {
+                if (((CortexMetricsGlobalConfig) o).isLiveMetricsEnabled()) {
+                    enable();
+                } else {
+                    disable();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts sampling once Jenkins has started if live metrics are enabled.
+     */
+    @Extension
+    public static final class StartupListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            if (CortexMetricsGlobalConfig.get().isLiveMetricsEnabled()) {
+                enable();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+
+import java.util.Map;
+
+/**
+ * Contributes additional metrics for a job run, published to Cortex together with the built in metrics of the run in
+ * the same remote write requests. Contributors are called in parallel on a bounded pool, and the metrics of a
+ * contributor which does not finish within its time budget are dropped.
+ *
+ * <p>Metric names are prefixed with the namespace just like the built in metrics, so a contributor adding
+ * {@code tests_total} publishes {@code <namespace>_jenkins_job_tests_total}. Every metric has the labels of the run,
+ * which the labels added by the contributor are merged into.</p>
+ *
+ * @author saville
+ */
+public abstract class CortexMetricsContributor implements ExtensionPoint {
+    /**
+     * The default time in milliseconds a contributor may take to contribute its metrics.
+     */
+    public static final long DEFAULT_TIME_BUDGET = 5000;
+
+    /**
+     * Determines whether the contributor has metrics for a run. Only applicable contributors are called, and the
+     * latency of only those is published.
+     * @param run the job run
+     * @return true if {@link #contribute(Run, Metrics)} should be called for the run
+     */
+    public boolean isApplicable(Run<?, ?> run) {
+        return true;
+    }
+
+    /**
+     * Adds the metrics for a run. This is called on a background thread, which is interrupted once the time budget
+     * has passed.
+     * @param run the job run
+     * @param metrics the metrics to add to
+     * @throws Exception if the metrics could not be determined, any metrics already added are still published
+     */
+    public abstract void contribute(Run<?, ?> run, Metrics metrics) throws Exception;
+
+    /**
+     * Return the time in milliseconds the contributor may take to contribute its metrics for a run.
+     * @return the time budget
+     */
+    public long getTimeBudget() {
+        return DEFAULT_TIME_BUDGET;
+    }
+
+    /**
+     * Return the name of the contributor, published as the contributor label of its latency metric.
+     * @return the name, the class name by default
+     */
+    public String getName() {
+        return getClass().getName();
+    }
+
+    /**
+     * Retrieves all registered contributors.
+     * @return the contributors
+     */
+    public static ExtensionList<CortexMetricsContributor> all() {
+        return ExtensionList.lookup(CortexMetricsContributor.class);
+    }
+
+    /**
+     * The metrics contributed for a run.
+     */
+    public interface Metrics {
+        /**
+         * Adds a metric with the labels of the run.
+         * @param name the metric name without the namespace prefix
+         * @param value the value
+         */
+        void add(String name, Number value);
+
+        /**
+         * Adds a metric with the labels of the run and additional labels, which replace any run labels with the same
+         * names.
+         * @param name the metric name without the namespace prefix
+         * @param labels the additional labels
+         * @param value the value
+         */
+        void add(String name, Map<String, String> labels, Number value);
+    }
+}
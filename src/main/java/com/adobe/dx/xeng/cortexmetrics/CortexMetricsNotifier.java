@@ -70,6 +70,7 @@ public class CortexMetricsNotifier extends Notifier {
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
+        build.addOrReplaceAction(new CortexPublishedAction());
         try {
             CortexPublisher publisher = new CortexPublisher(build, url, bearerToken, namespace, labels);
             publisher.send(listener);
@@ -0,0 +1,13 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Marks a run whose metrics were published by the notifier or the Pipeline step, so they are not published again when
+ * metrics are published for every completed run.
+ *
+ * @author saville
+ */
+public final class CortexPublishedAction extends InvisibleAction {
+    CortexPublishedAction() {}
+}
@@ -1,60 +1,74 @@
 package com.adobe.dx.xeng.cortexmetrics;
 
 import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsConfigProvider;
-import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexResolvedConfig;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
-import org.xerial.snappy.Snappy;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author saville
  */
 class CortexPublisher {
+    private static final Logger LOGGER = Logger.getLogger(CortexPublisher.class.getName());
+
     /**
-     * The timeout for connections to cortex.
+     * The maximum number of threads sending metrics for callers that do not wait for them.
      */
-    private static final int TIMEOUT = 60000;
+    private static final int MAX_ASYNC_SENDERS = 8;
+
+    // Each send holds at least one series, so the queue never holds more sends than the default queue capacity
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_ASYNC_SENDERS, MAX_ASYNC_SENDERS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(CortexMetricsGlobalConfig.DEFAULT_QUEUE_CAPACITY),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics publisher"));
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
 
-    private static final RequestConfig config = RequestConfig.custom()
-            .setConnectTimeout(TIMEOUT)
-            .setConnectionRequestTimeout(TIMEOUT)
-            .setSocketTimeout(TIMEOUT)
-            .build();
-    private static HttpClient httpClient = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+    /**
+     * The number of run series waiting for or being handled by the async senders, limited to the queue capacity so
+     * that series do not pile up in memory while Cortex or a contributor is slow.
+     */
+    private static final AtomicInteger pending = new AtomicInteger();
 
     private final String url;
-    private final Secret bearerToken;
     private final String namespace;
+    // Created once so the Authorization header is only built once per publish
+    private final CortexEndpoint endpoint;
     private final Run<?, ?> run;
     private final Map<String, String> labels;
 
     CortexPublisher(Run<?, ?> run, String url, Secret bearerToken, String namespace, Map<String, String> labels) {
-        // Pull configuration from global config if not specific directly
+        // Pull configuration from folder or global config if not specific directly, resolved once for all settings
+        CortexResolvedConfig config = CortexMetricsConfigProvider.getResolvedConfig(run.getParent());
         if (StringUtils.isBlank(url)) {
-            this.url = CortexMetricsConfigProvider.getConfiguredUrl(run.getParent());
+            this.url = config.getUrl();
         } else {
             this.url = url;
         }
         if (bearerToken == null || StringUtils.isBlank(bearerToken.getPlainText())) {
-            this.bearerToken = CortexMetricsConfigProvider.getConfiguredBearerToken(run.getParent());
-        } else {
-            this.bearerToken = bearerToken;
+            bearerToken = config.getBearerToken();
         }
         if (StringUtils.isBlank(namespace)) {
-            this.namespace = CortexMetricsConfigProvider.getConfiguredNamespace(run.getParent());
+            this.namespace = config.getNamespace();
         } else {
             this.namespace = namespace;
         }
@@ -63,76 +77,255 @@ class CortexPublisher {
         if (StringUtils.isBlank(this.url)) {
             throw new IllegalArgumentException("Cortex URL is not set, cannot publish metrics");
         }
-        if (this.bearerToken == null || StringUtils.isBlank(this.bearerToken.getPlainText())) {
+        if (bearerToken == null || StringUtils.isBlank(bearerToken.getPlainText())) {
             throw new IllegalArgumentException("Cortex bearer token is not set, cannot publish metrics");
         }
         if (StringUtils.isBlank(this.namespace)) {
             throw new IllegalArgumentException("Cortex namespace is not set, cannot publish metrics");
         }
 
+        if (this.url.equals(config.getUrl()) && bearerToken == config.getBearerToken()) {
+            this.endpoint = CortexEndpoint.forConfig(config);
+        } else {
+            this.endpoint = new CortexEndpoint(this.url, bearerToken, config.getConnectTimeout(),
+                    config.getSocketTimeout(), config.getConnectionRequestTimeout(), config.getWriteTimeout());
+        }
+
         this.run = run;
         this.labels = labels;
     }
 
-    private List<Prometheus.TimeSeries> createTimeSeries(Map<String, Number> metrics, Map<String, String> labels) {
-        List<Prometheus.TimeSeries> timeSeriesList = new ArrayList<>();
+    CortexEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    private List<CortexTimeSeries> createTimeSeries(Map<String, Number> metrics, Map<String, String> labels,
+                                                    long timestamp) {
+        String jobName = run.getParent().getFullName();
+        List<CortexTimeSeries> timeSeriesList = new ArrayList<>(metrics.size());
         for(Map.Entry<String, Number> metric : metrics.entrySet()){
-            // Create new builders for this iteration
-            Prometheus.TimeSeries.Builder timeSeriesBuilder = Prometheus.TimeSeries.newBuilder();
-            Prometheus.Sample.Builder sampleBuilder = Prometheus.Sample.newBuilder();
+            // Always add metric name (required), reusing the sorted and encoded labels from previous runs of the job
+            CortexLabels seriesLabels = CortexLabels.forSeries(jobName, metric.getKey(), labels);
 
-            // Always add metric name (required)
-            labels.put("__name__", metric.getKey());
+            // Add time series with its sample to list
+            timeSeriesList.add(new CortexTimeSeries(seriesLabels, metric.getValue().doubleValue(), timestamp));
+        }
+        return timeSeriesList;
+    }
 
-            // Add all labels
-            for (Map.Entry<String, String> label : labels.entrySet()) {
-                timeSeriesBuilder.addLabels(
-                        Prometheus.Label.newBuilder().setName(label.getKey()).setValue(label.getValue()).build()
-                );
-            }
+    private List<CortexTimeSeries> createTimeSeries(TaskListener listener) {
+        return createRunSeries(listener).withContributions(listener);
+    }
 
-            // Set values on sample and add to time series
-            sampleBuilder.setValue(metric.getValue().doubleValue());
-            sampleBuilder.setTimestamp(System.currentTimeMillis());
-            timeSeriesBuilder.addSamples(sampleBuilder.build());
+    /**
+     * Creates the series of the run from its state, leaving out the contributed series since contributors may take a
+     * while.
+     */
+    private RunSeries createRunSeries(TaskListener listener) {
+        listener.getLogger().println("Publishing metrics to Cortex at " + url + " with namespace " + namespace);
+        Map<String, Number> sendMetrics = CortexRunHelper.getMetrics(run, namespace);
+        Map<String, String> sendLabels = CortexRunHelper.getLabels(run, labels);
+        listener.getLogger().println("Metrics: " + sendMetrics + ", labels: " + sendLabels);
+        if (CortexMetricsGlobalConfig.get().isAggregationEnabled()) {
+            // The run is counted and its duration sent periodically as a histogram instead
+            CortexAggregator aggregator = CortexAggregator.get();
+            CortexLabels runLabels = CortexLabels.of(sendLabels);
+            String durationName = CortexRunHelper.getMetricName(namespace, "duration");
+            Number duration = sendMetrics.remove(durationName);
+            aggregator.observe(endpoint, durationName, runLabels, duration.doubleValue());
+            String countName = CortexRunHelper.getMetricName(namespace, "count");
+            Number count = sendMetrics.remove(countName);
+            aggregator.increment(endpoint, CortexRunHelper.getMetricName(namespace, "runs_total"), runLabels,
+                    count.longValue());
+        }
+        // All samples share the timestamp of the run event, however long it takes to send them
+        long timestamp = CortexRunHelper.getTimestamp(run, CortexMetricsGlobalConfig.get().getTimestampPolicy(),
+                System.currentTimeMillis());
+        List<CortexTimeSeries> timeSeriesList = createTimeSeries(sendMetrics, sendLabels, timestamp);
+        Map<String, Number> queueMetrics = CortexRunHelper.getQueueMetrics(run, namespace);
+        if (!queueMetrics.isEmpty()) {
+            String nodeLabel = CortexRunHelper.getNodeLabel(run);
+            listener.getLogger().println("Queue metrics: " + queueMetrics + ", node label: " + nodeLabel);
+            Map<String, String> queueLabels = new HashMap<>(sendLabels);
+            queueLabels.put("node_label", nodeLabel);
+            timeSeriesList.addAll(createTimeSeries(queueMetrics, queueLabels, timestamp));
+        }
+        return new RunSeries(timeSeriesList, sendLabels, timestamp);
+    }
 
-            // Add time series to list
-            timeSeriesList.add(timeSeriesBuilder.build());
+    private CompletableFuture<Void> enqueue(TaskListener listener, List<CortexTimeSeries> timeSeriesList) {
+        if (timeSeriesList.isEmpty()) {
+            listener.getLogger().println("Aggregated metrics for sending to Cortex");
+            return CompletableFuture.completedFuture(null);
+        }
+        // The background senders will coalesce these with series from other runs
+        CompletableFuture<Void> future = CortexWriteQueue.get().offer(endpoint, timeSeriesList);
+        if (future == null) {
+            listener.getLogger().println("Cortex write queue is full, dropping metrics");
+            LOGGER.log(Level.WARNING, "Cortex write queue is full, dropping metrics for {0}", run.getExternalizableId());
+            future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Cortex write queue is full, dropped metrics"));
+            return future;
+        }
+        listener.getLogger().println("Queued metrics for sending to Cortex");
+        return future;
+    }
+
+    /**
+     * Sends the run metrics to Cortex, or queues them to be sent if batching is enabled.
+     * @param listener the listener for logging
+     * @throws Exception if the metrics could not be sent
+     */
+    void send(TaskListener listener) throws Exception {
+        List<CortexTimeSeries> timeSeriesList = createTimeSeries(listener);
+        if (CortexMetricsGlobalConfig.get().isBatchingEnabled() || timeSeriesList.isEmpty()) {
+            enqueue(listener, timeSeriesList);
+        } else {
+            CortexRemoteWriter.write(endpoint, timeSeriesList);
+            listener.getLogger().println("Successfully sent metrics to Cortex");
         }
-        return timeSeriesList;
     }
 
-    private void write(List<Prometheus.TimeSeries> timeSeriesList) throws Exception {
-        HttpPost httpPost = new HttpPost(url);
-        httpPost.setHeader("Content-Type","application/x-www-form-urlencoded");
-        httpPost.setHeader("Content-Encoding", "snappy");
-        httpPost.setHeader("X-Prometheus-Remote-Write-Version", "0.1.0");
-        httpPost.setHeader("Authorization", "Bearer " + this.bearerToken);
+    /**
+     * Queues the run metrics to be sent with series from other runs, whether or not batching is enabled, without
+     * blocking the calling thread. Only the run state is read on the calling thread, the contributors are called by the
+     * async senders.
+     * @param listener the listener for logging while preparing the metrics
+     * @return a future completed once Cortex has accepted the metrics
+     */
+    CompletableFuture<Void> sendQueued(TaskListener listener) {
+        return sendAsync(listener, true);
+    }
 
-        Prometheus.WriteRequest.Builder writeRequestBuilder = Prometheus.WriteRequest.newBuilder();
-        Prometheus.WriteRequest writeRequest = writeRequestBuilder.addAllTimeseries(timeSeriesList).build();
-        byte[] compressed = Snappy.compress(writeRequest.toByteArray());
-        ByteArrayEntity byteArrayEntity = new ByteArrayEntity(compressed);
+    /**
+     * Queues metrics about part of the run, such as one of its stages, to be sent with series from other runs. Only
+     * the job name and the given labels are added, since the run has usually not finished yet.
+     * @param metrics the metrics, named without the namespace
+     * @param partLabels the labels identifying the part of the run
+     * @param timestamp the sample timestamp in milliseconds
+     * @return a future completed once Cortex has accepted the metrics, or null if the queue is full
+     */
+    CompletableFuture<Void> sendQueued(Map<String, Number> metrics, Map<String, String> partLabels, long timestamp) {
+        Map<String, Number> sendMetrics = new HashMap<>();
+        for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+            sendMetrics.put(CortexRunHelper.getMetricName(namespace, metric.getKey()), metric.getValue());
+        }
+        Map<String, String> sendLabels = new HashMap<>();
+        sendLabels.put("job_name", run.getParent().getFullName());
+        if (labels != null) {
+            sendLabels.putAll(labels);
+        }
+        sendLabels.putAll(partLabels);
+        return CortexWriteQueue.get().offer(endpoint, createTimeSeries(sendMetrics, sendLabels, timestamp));
+    }
 
-        httpPost.setEntity(byteArrayEntity);
+    /**
+     * Creates the series describing the run while it is in progress: how long it has been running, and a heartbeat
+     * with the time of the sample in seconds so stalled runs can be detected. The build number is included in the
+     * labels so concurrent runs of the same job can be told apart.
+     * @param now the time of the sample in milliseconds
+     * @return the series
+     */
+    List<CortexTimeSeries> createLiveTimeSeries(long now) {
+        Map<String, Number> liveMetrics = new HashMap<>();
+        liveMetrics.put(CortexRunHelper.getMetricName(namespace, "elapsed"),
+                Math.max(0, now - run.getStartTimeInMillis()) / 1000d);
+        liveMetrics.put(CortexRunHelper.getMetricName(namespace, "heartbeat"), now / 1000d);
+        Map<String, String> liveLabels = new HashMap<>();
+        liveLabels.put("job_name", run.getParent().getFullName());
+        if (labels != null) {
+            liveLabels.putAll(labels);
+        }
+        liveLabels.put("build_number", Integer.toString(run.getNumber()));
+        // The build number changes with every run, so the labels are not cached
+        CortexLabels runLabels = CortexLabels.of(liveLabels);
+        List<CortexTimeSeries> timeSeriesList = new ArrayList<>(liveMetrics.size());
+        for (Map.Entry<String, Number> metric : liveMetrics.entrySet()) {
+            timeSeriesList.add(new CortexTimeSeries(runLabels.with("__name__", metric.getKey()),
+                    metric.getValue().doubleValue(), now));
+        }
+        return timeSeriesList;
+    }
+
+    /**
+     * Sends the run metrics to Cortex without blocking the calling thread, or queues them to be sent if batching is
+     * enabled. Only the run state is read on the calling thread, the contributors are called by the async senders.
+     * @param listener the listener for logging while preparing the metrics
+     * @return a future completed once Cortex has accepted the metrics
+     */
+    CompletableFuture<Void> sendAsync(TaskListener listener) {
+        return sendAsync(listener, CortexMetricsGlobalConfig.get().isBatchingEnabled());
+    }
+
+    private CompletableFuture<Void> sendAsync(TaskListener listener, boolean batching) {
+        RunSeries runSeries = createRunSeries(listener);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        // Contributed series are not known yet, so only the series of the run count towards the limit
+        int size = Math.max(1, runSeries.timeSeriesList.size());
+        if (pending.addAndGet(size) > CortexMetricsGlobalConfig.get().getQueueCapacity()) {
+            pending.addAndGet(-size);
+            return rejected(listener, future);
+        }
         try {
-            HttpResponse response = httpClient.execute(httpPost);
-            // Consume the entity so it can be closed correctly
-            EntityUtils.consumeQuietly(response.getEntity());
-        } finally {
-            // Always release the connection so it can go back into the pool
-            httpPost.releaseConnection();
+            executor.execute(() -> {
+                try {
+                    List<CortexTimeSeries> timeSeriesList = runSeries.withContributions(listener);
+                    if (batching || timeSeriesList.isEmpty()) {
+                        enqueue(listener, timeSeriesList).whenComplete((result, e) -> {
+                            if (e == null) {
+                                future.complete(null);
+                            } else {
+                                future.completeExceptionally(e);
+                            }
+                        });
+                    } else {
+                        CortexRemoteWriter.write(endpoint, timeSeriesList);
+                        future.complete(null);
+                    }
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    pending.addAndGet(-size);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.addAndGet(-size);
+            return rejected(listener, future);
         }
+        return future;
     }
 
-    void send(TaskListener listener) throws Exception {
-        listener.getLogger().println("Publishing metrics to Cortex at " + url + " with namespace " + namespace);
-        Map<String, Number> sendMetrics = CortexRunHelper.getMetrics(run, namespace);
-        Map<String, String> sendLabels = CortexRunHelper.getLabels(run, labels);
-        listener.getLogger().println("Metrics: " + sendMetrics + ", labels: " + sendLabels);
+    private CompletableFuture<Void> rejected(TaskListener listener, CompletableFuture<Void> future) {
+        listener.getLogger().println("Cortex send queue is full, dropping metrics");
+        LOGGER.log(Level.WARNING, "Cortex send queue is full, dropping metrics for {0}", run.getExternalizableId());
+        future.completeExceptionally(new IOException("Cortex send queue is full, dropped metrics"));
+        return future;
+    }
+
+    /**
+     * The series created from the state of a run, together with what is needed to add the contributed series later.
+     */
+    private final class RunSeries {
+        private final List<CortexTimeSeries> timeSeriesList;
+        private final Map<String, String> labels;
+        private final long timestamp;
+
+        private RunSeries(List<CortexTimeSeries> timeSeriesList, Map<String, String> labels, long timestamp) {
+            this.timeSeriesList = timeSeriesList;
+            this.labels = labels;
+            this.timestamp = timestamp;
+        }
 
-        List<Prometheus.TimeSeries> timeSeriesList = createTimeSeries(sendMetrics, sendLabels);
-        write(timeSeriesList);
-        listener.getLogger().println("Successfully sent metrics to Cortex");
+        /**
+         * Calls the contributors and adds their series.
+         * @param listener the listener for logging
+         * @return the series of the run including the contributed series
+         */
+        private List<CortexTimeSeries> withContributions(TaskListener listener) {
+            // Metrics from other plugins go in the same requests rather than being pushed separately
+            timeSeriesList.addAll(CortexContributions.collect(run, namespace, labels, timeSeriesList, timestamp,
+                    listener));
+            return timeSeriesList;
+        }
     }
 }
@@ -0,0 +1,94 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Executor;
+import hudson.model.OneOffExecutor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks how long items wait and are blocked in the build queue when queue metrics are enabled, and attaches a
+ * {@link CortexQueueTimeAction} to each run once it starts. Only the item events are recorded, the queue itself is
+ * never scanned.
+ *
+ * @author saville
+ */
+@Extension
+public final class CortexQueueListener extends QueueListener {
+    /**
+     * The maximum number of items that left the queue waiting for their run to start.
+     */
+    static final int MAX_LEFT = 10000;
+
+    private final Map<Long, Long> blockedSince = new ConcurrentHashMap<>();
+    private final Map<Long, Long> blockedMillis = new ConcurrentHashMap<>();
+    // Items that are never started as runs are eventually evicted
+    private final Map<Long, CortexQueueTimeAction> left = Collections.synchronizedMap(
+            new LinkedHashMap<Long, CortexQueueTimeAction>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CortexQueueTimeAction> eldest) {
+                    return size() > MAX_LEFT;
+                }
+            });
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem item) {
+        if (CortexMetricsGlobalConfig.get().isQueueMetricsEnabled()) {
+            blockedSince.put(item.getId(), System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void onLeaveBlocked(Queue.BlockedItem item) {
+        Long since = blockedSince.remove(item.getId());
+        if (since != null) {
+            blockedMillis.merge(item.getId(), System.currentTimeMillis() - since, Long::sum);
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        long now = System.currentTimeMillis();
+        Long since = blockedSince.remove(item.getId());
+        Long blocked = blockedMillis.remove(item.getId());
+        if (item.isCancelled() || !CortexMetricsGlobalConfig.get().isQueueMetricsEnabled()) {
+            return;
+        }
+        long totalBlocked = (blocked == null ? 0 : blocked) + (since == null ? 0 : now - since);
+        String label = item.getAssignedLabel() == null ? "" : item.getAssignedLabel().getExpression();
+        left.put(item.getId(), new CortexQueueTimeAction(Math.max(0, now - item.getInQueueSince()), totalBlocked,
+                label));
+    }
+
+    private CortexQueueTimeAction remove(long queueId) {
+        return left.remove(queueId);
+    }
+
+    /**
+     * Attaches the queue timing to runs as they start.
+     */
+    @Extension
+    public static final class StartListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            CortexQueueTimeAction action = ExtensionList.lookupSingleton(CortexQueueListener.class)
+                    .remove(run.getQueueId());
+            if (action == null) {
+                return;
+            }
+            Executor executor = run.getExecutor();
+            action.setExecutor(executor != null && !(executor instanceof OneOffExecutor));
+            run.addAction(action);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Records how long a run waited in the build queue before it started, stored with the run so it is still available
+ * when metrics are published after a restart.
+ *
+ * @author saville
+ */
+public final class CortexQueueTimeAction extends InvisibleAction {
+    private final long waitingMillis;
+    private final long blockedMillis;
+    private final String label;
+    private boolean executor;
+
+    /**
+     * Creates the action.
+     * @param waitingMillis the total time in the queue in milliseconds
+     * @param blockedMillis the part of that time the item was blocked in milliseconds
+     * @param label the label expression the item was assigned to, empty if it could run anywhere
+     */
+    CortexQueueTimeAction(long waitingMillis, long blockedMillis, String label) {
+        this.waitingMillis = waitingMillis;
+        this.blockedMillis = blockedMillis;
+        this.label = label;
+    }
+
+    /**
+     * Get the total time the run spent in the queue, including the time it was blocked.
+     * @return the time in milliseconds
+     */
+    public long getWaitingMillis() {
+        return waitingMillis;
+    }
+
+    /**
+     * Get the time the run was blocked in the queue, such as waiting for another run of the same job.
+     * @return the time in milliseconds
+     */
+    public long getBlockedMillis() {
+        return blockedMillis;
+    }
+
+    /**
+     * Get the label expression the run was assigned to.
+     * @return the label expression, empty if the run could run anywhere
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Whether the run occupies a regular executor for its whole duration, rather than a flyweight executor such as
+     * Pipelines do.
+     * @return true if the run occupies an executor
+     */
+    public boolean isExecutor() {
+        return executor;
+    }
+
+    void setExecutor(boolean executor) {
+        this.executor = executor;
+    }
+}
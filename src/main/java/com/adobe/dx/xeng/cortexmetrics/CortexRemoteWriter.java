@@ -0,0 +1,272 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends remote write requests to Cortex. Requests rejected with a 5xx or 429 status, or that fail to reach Cortex, are
+ * retried with capped exponential backoff and full jitter so retries from many senders do not line up, honoring any
+ * Retry-After header. Any other 4xx status means the request is invalid and it is not retried.
+ *
+ * @author saville
+ */
+final class CortexRemoteWriter {
+    private static final Logger LOGGER = Logger.getLogger(CortexRemoteWriter.class.getName());
+
+    /**
+     * The maximum length of a Cortex error response included in exception messages.
+     */
+    private static final int MAX_ERROR_LENGTH = 256;
+
+    private CortexRemoteWriter() {}
+
+    /**
+     * Writes the series to Cortex in a single remote write request, retrying recoverable failures until the
+     * endpoint's write timeout has passed.
+     * @param endpoint the endpoint to write to
+     * @param timeSeriesList the series to write
+     * @throws IOException if the request could not be sent or was rejected
+     */
+    static void write(CortexEndpoint endpoint, List<CortexTimeSeries> timeSeriesList) throws IOException {
+        ByteBuffer uncompressed = null;
+        ByteBuffer compressed = null;
+        try {
+            uncompressed = encode(timeSeriesList);
+            compressed = CortexBufferPool.acquire(Snappy.maxCompressedLength(uncompressed.remaining()));
+            Snappy.compress(uncompressed, compressed);
+            // The uncompressed payload is no longer needed while waiting on retries
+            CortexBufferPool.release(uncompressed);
+            uncompressed = null;
+            write(endpoint, new ByteBufferEntity(compressed));
+        } finally {
+            CortexBufferPool.release(uncompressed);
+            CortexBufferPool.release(compressed);
+        }
+    }
+
+    /**
+     * Encodes a write request for the series directly into a pooled buffer.
+     * @return the buffer, ready to be read
+     */
+    private static ByteBuffer encode(List<CortexTimeSeries> timeSeriesList) throws IOException {
+        ByteBuffer buffer = CortexBufferPool.acquire(CortexWriteRequestEncoder.computeSize(timeSeriesList));
+        try {
+            CortexWriteRequestEncoder.encode(timeSeriesList, buffer);
+        } catch (IOException | RuntimeException e) {
+            // The caller never sees the buffer, so return it to the pool here
+            CortexBufferPool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(CortexEndpoint endpoint, HttpEntity entity) throws IOException {
+        CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(endpoint.getWriteTimeout());
+        for (int attempt = 0; ; attempt++) {
+            try {
+                post(endpoint, entity, deadline);
+                return;
+            } catch (CortexWriteException e) {
+                if (!e.isRetryable() || attempt >= config.getMaxRetries()) {
+                    throw e;
+                }
+                long delay = e.getRetryAfter() >= 0 ? e.getRetryAfter()
+                        : getBackoff(attempt, config.getMinBackoff(), config.getMaxBackoff());
+                retryOrThrow(endpoint, e, delay, deadline);
+            } catch (IOException e) {
+                if (attempt >= config.getMaxRetries()) {
+                    throw e;
+                }
+                retryOrThrow(endpoint, e, getBackoff(attempt, config.getMinBackoff(), config.getMaxBackoff()),
+                        deadline);
+            }
+        }
+    }
+
+    private static void retryOrThrow(CortexEndpoint endpoint, IOException e, long delay, long deadline)
+            throws IOException {
+        if (System.currentTimeMillis() + delay >= deadline) {
+            throw e;
+        }
+        LOGGER.log(Level.FINE, "Retrying write to Cortex at " + endpoint + " in " + delay + "ms", e);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while retrying write to Cortex");
+            interrupted.addSuppressed(e);
+            throw interrupted;
+        }
+    }
+
+    /**
+     * Calculates a random delay of up to the exponential backoff for the attempt, capped at the maximum backoff.
+     */
+    private static long getBackoff(int attempt, long minBackoff, long maxBackoff) {
+        long backoff = minBackoff << Math.min(attempt, 30);
+        if (backoff <= 0 || backoff > maxBackoff) {
+            backoff = maxBackoff;
+        }
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    private static void post(CortexEndpoint endpoint, HttpEntity entity, long deadline) throws IOException {
+        HttpPost httpPost = new HttpPost(endpoint.getUrl());
+        httpPost.setHeader("Content-Type","application/x-www-form-urlencoded");
+        httpPost.setHeader("Content-Encoding", "snappy");
+        httpPost.setHeader("X-Prometheus-Remote-Write-Version", "0.1.0");
+        if (endpoint.getAuthorization() != null) {
+            httpPost.setHeader("Authorization", endpoint.getAuthorization());
+        }
+        httpPost.setEntity(entity);
+        httpPost.setConfig(RequestConfig.custom()
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(endpoint.getConnectTimeout()))
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(endpoint.getSocketTimeout()))
+                .setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(endpoint.getConnectionRequestTimeout()))
+                .build());
+
+        // The individual timeouts do not bound the whole request, so abort it once the write timeout has passed
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        ScheduledFuture<?> abort = Timer.get().schedule(httpPost::abort, remaining, TimeUnit.MILLISECONDS);
+        try {
+            HttpResponse response = CortexHttpClients.get(endpoint).execute(httpPost);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode / 100 != 2) {
+                throw new CortexWriteException(statusCode, "Cortex responded with status " + statusCode + ": "
+                        + getErrorMessage(response), getRetryAfter(response));
+            }
+            // Consume the entity so it can be closed correctly
+            EntityUtils.consumeQuietly(response.getEntity());
+        } catch (IOException e) {
+            if (abort.isDone()) {
+                throw new IOException("Write to Cortex did not complete within " + endpoint.getWriteTimeout()
+                        + " seconds", e);
+            }
+            throw e;
+        } finally {
+            abort.cancel(false);
+            // Always release the connection so it can go back into the pool
+            httpPost.releaseConnection();
+        }
+    }
+
+    private static String getErrorMessage(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return "";
+        }
+        return StringUtils.abbreviate(EntityUtils.toString(entity).trim(), MAX_ERROR_LENGTH);
+    }
+
+    /**
+     * Parses the Retry-After header, which is either a number of seconds or an HTTP date.
+     * @return the delay in milliseconds, or -1 if not set or invalid
+     */
+    private static long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || StringUtils.isBlank(header.getValue())) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        if (StringUtils.isNumeric(value)) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * Streams the contents of a buffer without copying it to a byte array first. The buffer itself is never modified,
+     * so the entity can be sent again on retries.
+     */
+    private static final class ByteBufferEntity extends AbstractHttpEntity {
+        private static final int CHUNK_SIZE = 8192;
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferEntity(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public InputStream getContent() {
+            ByteBuffer content = buffer.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return content.hasRemaining() ? content.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!content.hasRemaining()) {
+                        return -1;
+                    }
+                    int count = Math.min(len, content.remaining());
+                    content.get(b, off, count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return content.remaining();
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            ByteBuffer content = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, content.remaining())];
+            while (content.hasRemaining()) {
+                int count = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, count);
+                outputStream.write(chunk, 0, count);
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.adobe.dx.xeng.cortexmetrics;
 
 import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexTimestampPolicy;
 import hudson.model.Result;
 import hudson.model.Run;
 
@@ -15,7 +16,7 @@ import java.util.Map;
 class CortexRunHelper {
     private static final String JENKINS_METRIC_NAME = "jenkins_job";
 
-    private static String getMetricName(String namespace, String name) {
+    static String getMetricName(String namespace, String name) {
         String actualNamespace = namespace;
         if (namespace == null) {
             actualNamespace = CortexMetricsGlobalConfig.DEFAULT_NAMESPACE;
@@ -42,6 +43,25 @@ class CortexRunHelper {
         return run.getDuration() != 0 ? run.getDuration() : System.currentTimeMillis() - run.getStartTimeInMillis();
     }
 
+    /**
+     * Determines the timestamp for all the samples published for a run.
+     * @param run The job run
+     * @param policy Which moment to use
+     * @param now The current time in milliseconds
+     * @return The timestamp in milliseconds
+     */
+    static long getTimestamp(Run<?, ?> run, CortexTimestampPolicy policy, long now) {
+        switch (policy) {
+            case RUN_START:
+                return run.getStartTimeInMillis();
+            case RUN_END:
+                // Runs still in progress have no duration yet, so they end now
+                return run.getDuration() != 0 ? run.getStartTimeInMillis() + run.getDuration() : now;
+            default:
+                return now;
+        }
+    }
+
     /**
      * Generates metrics for publishing to Cortex, including job count and duration.
      * @param run The job run
@@ -57,6 +77,39 @@ class CortexRunHelper {
         return metrics;
     }
 
+    /**
+     * Generates metrics about the time the run spent in the build queue and on an executor, if queue metrics were
+     * enabled when the run was queued.
+     * @param run The job run
+     * @param namespace The namespace to use for metrics, defaults to "default"
+     * @return The queue metrics, empty if the run has no queue timing
+     */
+    static Map<String, Number> getQueueMetrics(Run<?, ?> run, String namespace) {
+        Map<String, Number> metrics = new HashMap<>();
+        CortexQueueTimeAction action = run.getAction(CortexQueueTimeAction.class);
+        if (action == null) {
+            return metrics;
+        }
+        metrics.put(getMetricName(namespace, "queue_duration"), action.getWaitingMillis() / 1000d);
+        metrics.put(getMetricName(namespace, "queue_blocked_duration"), action.getBlockedMillis() / 1000d);
+        if (action.isExecutor()) {
+            // Pipelines only hold a flyweight executor, their node blocks are queued separately
+            metrics.put(getMetricName(namespace, "executor_duration"), getRunDuration(run) / 1000d);
+        }
+        return metrics;
+    }
+
+    /**
+     * Retrieves the label expression the run was assigned to in the queue, as the node_label label of its queue
+     * metrics.
+     * @param run The job run
+     * @return The label expression, empty if it could run anywhere or is not known
+     */
+    static String getNodeLabel(Run<?, ?> run) {
+        CortexQueueTimeAction action = run.getAction(CortexQueueTimeAction.class);
+        return action == null ? "" : action.getLabel();
+    }
+
     /**
      * Generates labels for publishing to Cortex, automatically including some default labels such as name and result,
      * and optionally including additional labels.
@@ -0,0 +1,107 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsConfigProvider;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import com.adobe.dx.xeng.cortexmetrics.config.CortexResolvedConfig;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Publishes metrics for every completed run when enabled in the global configuration, so jobs do not each need the
+ * notifier or the Pipeline step. Jobs can be included and excluded by regular expressions matching their full names.
+ * The metrics are always queued, so series from runs completing close together share write requests, and the
+ * contributors are called by the async senders so they do not hold up the completion of the run.
+ *
+ * @author saville
+ */
+@Extension
+public final class CortexRunListener extends RunListener<Run<?, ?>> {
+    private static final Logger LOGGER = Logger.getLogger(CortexRunListener.class.getName());
+
+    // The patterns last compiled, recompiled only when the configuration changes
+    private volatile CompiledPattern included = CompiledPattern.NONE;
+    private volatile CompiledPattern excluded = CompiledPattern.NONE;
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+        CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+        // Runs already published by the notifier or the Pipeline step would send the same series twice
+        if (!config.isAllRunsEnabled() || !isIncluded(config, run.getParent())
+                || run.getAction(CortexPublishedAction.class) != null) {
+            return;
+        }
+        // Checked up front, every run would otherwise log the same failure
+        CortexResolvedConfig resolved = CortexMetricsConfigProvider.getResolvedConfig(run.getParent());
+        if (StringUtils.isBlank(resolved.getUrl()) || resolved.getBearerToken() == null
+                || StringUtils.isBlank(resolved.getBearerToken().getPlainText())
+                || StringUtils.isBlank(resolved.getNamespace())) {
+            LOGGER.log(Level.FINE, "Cortex is not configured for {0}, not publishing metrics", run);
+            return;
+        }
+        String runId = run.getExternalizableId();
+        try {
+            new CortexPublisher(run, null, null, null, Collections.emptyMap()).sendQueued(listener)
+                    .whenComplete((result, e) -> {
+                        if (e != null) {
+                            LOGGER.log(Level.WARNING, "Failed to publish metrics to Cortex for " + runId, e);
+                        }
+                    });
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to publish metrics to Cortex for " + run, e);
+        }
+    }
+
+    private boolean isIncluded(CortexMetricsGlobalConfig config, Job<?, ?> job) {
+        String name = job.getFullName();
+        included = included.update(config.getIncludedJobs());
+        excluded = excluded.update(config.getExcludedJobs());
+        return included.matches(name, true) && !excluded.matches(name, false);
+    }
+
+    /**
+     * A job name pattern together with the configured value it was compiled from.
+     */
+    private static final class CompiledPattern {
+        private static final CompiledPattern NONE = new CompiledPattern(null, null);
+
+        private final String value;
+        private final Pattern pattern;
+
+        private CompiledPattern(String value, Pattern pattern) {
+            this.value = value;
+            this.pattern = pattern;
+        }
+
+        CompiledPattern update(String newValue) {
+            if (StringUtils.equals(value, newValue)) {
+                return this;
+            }
+            if (StringUtils.isBlank(newValue)) {
+                return new CompiledPattern(newValue, null);
+            }
+            try {
+                return new CompiledPattern(newValue, Pattern.compile(newValue.trim()));
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid Cortex job name pattern " + newValue, e);
+                return new CompiledPattern(newValue, null);
+            }
+        }
+
+        /**
+         * Whether the name matches the pattern, or the default if there is no valid pattern.
+         */
+        boolean matches(String name, boolean defaultValue) {
+            return pattern == null ? defaultValue : pattern.matcher(name).matches();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TagsAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the duration and result of every Pipeline stage as it completes, when enabled in the global
+ * configuration. Each stage is handled once, from the node ending its block, so the flow graph is never scanned.
+ * Only the stage details are read on the Pipeline thread, the series are created and queued on a separate thread so
+ * resolving the configuration and writing the write-ahead log never hold up the Pipeline. The series are always
+ * queued, so stages completing close together share write requests.
+ *
+ * @author saville
+ */
+// Only loaded if the Pipeline plugins are installed
+@Extension(optional = true)
+public final class CortexStageListener implements GraphListener {
+    private static final Logger LOGGER = Logger.getLogger(CortexStageListener.class.getName());
+
+    /**
+     * The maximum number of stages waiting to be queued, further stages are dropped.
+     */
+    private static final int MAX_PENDING = 1000;
+
+    // The tag Declarative Pipelines add to stages that were skipped or failed without failing the build
+    private static final String STAGE_STATUS_TAG = "STAGE_STATUS";
+    private static final String FAILED_AND_CONTINUED = "FAILED_AND_CONTINUED";
+    private static final String SKIPPED_PREFIX = "SKIPPED_";
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_PENDING),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics stage publisher"));
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        // Cheap checks first, this is called for every node of every Pipeline
+        if (!(node instanceof BlockEndNode) || !CortexMetricsGlobalConfig.get().isStageMetricsEnabled()) {
+            return;
+        }
+        BlockStartNode start = ((BlockEndNode<?>) node).getStartNode();
+        LabelAction label = start.getPersistentAction(LabelAction.class);
+        // Parallel branches are labelled too, but are not stages
+        if (label == null || start.getPersistentAction(ThreadNameAction.class) != null) {
+            return;
+        }
+        Run<?, ?> run;
+        try {
+            Queue.Executable executable = node.getExecution().getOwner().getExecutable();
+            if (!(executable instanceof Run)) {
+                return;
+            }
+            run = (Run<?, ?>) executable;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to publish stage metrics to Cortex for " + node, e);
+            return;
+        }
+        String stage = label.getDisplayName();
+        long startTime = TimingAction.getStartTime(start);
+        long endTime = TimingAction.getStartTime(node);
+        Result result = getResult(start, node);
+        try {
+            executor.execute(() -> publish(run, stage, startTime, endTime, result));
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Too many Cortex stage metrics waiting, dropping stage metrics for {0}", run);
+        }
+    }
+
+    private static void publish(Run<?, ?> run, String stage, long startTime, long endTime, Result result) {
+        try {
+            Map<String, Number> metrics = Collections.singletonMap("stage_duration",
+                    Math.max(0, endTime - startTime) / 1000d);
+            Map<String, String> labels = new HashMap<>();
+            labels.put("stage", stage);
+            labels.put("stage_result", result.toString());
+            CompletableFuture<Void> future = new CortexPublisher(run, null, null, null, Collections.emptyMap())
+                    .sendQueued(metrics, labels, endTime > 0 ? endTime : System.currentTimeMillis());
+            if (future == null) {
+                LOGGER.log(Level.FINE, "Cortex write queue is full, dropping stage metrics for {0}", run);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to publish stage metrics to Cortex for " + run, e);
+        }
+    }
+
+    /**
+     * Determines the result of a stage: failed if it ended with an error or Declarative marked it as failed, not built
+     * if Declarative skipped it, and successful otherwise.
+     */
+    private static Result getResult(FlowNode start, FlowNode end) {
+        if (end.getError() != null) {
+            return Result.FAILURE;
+        }
+        TagsAction tags = start.getPersistentAction(TagsAction.class);
+        String status = tags == null ? null : tags.getTagValue(STAGE_STATUS_TAG);
+        if (FAILED_AND_CONTINUED.equals(status)) {
+            return Result.FAILURE;
+        }
+        if (status != null && status.startsWith(SKIPPED_PREFIX)) {
+            return Result.NOT_BUILT;
+        }
+        return Result.SUCCESS;
+    }
+}
@@ -0,0 +1,201 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.tasks.test.AbstractTestResultAction;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Contributes the test result counts and test duration of runs with test results, when enabled in the global
+ * configuration. The counts are stored with the test result action, so the test report is never loaded for them.
+ * The total duration follows the suites at the end of the JUnit report stored with the run, so only the end of the
+ * report is read for it. Only when suite durations are enabled is the whole report streamed, without creating any test
+ * case objects, which for large reports would take seconds and hundreds of megabytes.
+ *
+ * @author saville
+ */
+@Extension
+public final class CortexTestResultContributor extends CortexMetricsContributor {
+    /**
+     * The report stored in the build directory by the JUnit plugin.
+     */
+    static final String REPORT_FILE = "junitResult.xml";
+
+    /**
+     * The number of bytes read from the end of the report for the total duration, which only has a few small elements
+     * after the suites.
+     */
+    static final int TAIL_SIZE = 4096;
+
+    private static final Pattern DURATION = Pattern.compile("<duration>([^<]*)</duration>");
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // The report is written by Jenkins, but there is no reason to resolve anything it refers to
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    @Override
+    public boolean isApplicable(Run<?, ?> run) {
+        return CortexMetricsGlobalConfig.get().isTestMetricsEnabled()
+                && run.getAction(AbstractTestResultAction.class) != null;
+    }
+
+    @Override
+    public void contribute(Run<?, ?> run, Metrics metrics) throws IOException, XMLStreamException {
+        AbstractTestResultAction<?> action = run.getAction(AbstractTestResultAction.class);
+        if (action == null) {
+            return;
+        }
+        metrics.add("tests_total", action.getTotalCount());
+        metrics.add("tests_failed", action.getFailCount());
+        metrics.add("tests_skipped", action.getSkipCount());
+
+        // Other test result actions do not store a JUnit report, so have no durations
+        File report = new File(run.getRootDir(), REPORT_FILE);
+        if (!report.isFile()) {
+            return;
+        }
+        if (!CortexMetricsGlobalConfig.get().isTestSuiteMetricsEnabled()) {
+            double total = readTotalDuration(report);
+            // Reports written by old versions of the JUnit plugin have no total duration
+            if (total >= 0) {
+                metrics.add("tests_duration", total);
+            }
+            return;
+        }
+        Map<String, Double> suiteDurations = new LinkedHashMap<>();
+        metrics.add("tests_duration", readDurations(report, suiteDurations));
+        for (Map.Entry<String, Double> suite : suiteDurations.entrySet()) {
+            metrics.add("test_suite_duration", Collections.singletonMap("test_suite", suite.getKey()),
+                    suite.getValue());
+        }
+    }
+
+    /**
+     * Reads the total duration from the end of a JUnit report, where it follows the suites, without reading the
+     * suites.
+     * @param report the report file
+     * @return the total duration in seconds, or -1 if the report has no total duration
+     * @throws IOException if the report could not be read
+     */
+    static double readTotalDuration(File report) throws IOException {
+        String tail;
+        try (RandomAccessFile file = new RandomAccessFile(report, "r")) {
+            long length = file.length();
+            byte[] bytes = new byte[(int) Math.min(length, TAIL_SIZE)];
+            file.seek(length - bytes.length);
+            file.readFully(bytes);
+            // The tail may start within a multi-byte character, but the elements looked for are ASCII
+            tail = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        // Text within the suites is escaped, so only the end of the suites element can match
+        int suitesEnd = Math.max(tail.lastIndexOf("</suites>"), tail.lastIndexOf("<suites/>"));
+        if (suitesEnd < 0) {
+            return -1;
+        }
+        Matcher matcher = DURATION.matcher(tail);
+        matcher.region(suitesEnd, tail.length());
+        return matcher.find() ? parseDuration(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Reads the durations from a JUnit report in a single pass, only looking at the elements directly below the
+     * result and its suites, and stopping at the total duration following the suites.
+     * @param report the report file
+     * @param suiteDurations the map to add the duration of every suite to by name, or null to skip them
+     * @return the total duration in seconds
+     * @throws IOException if the report could not be read
+     * @throws XMLStreamException if the report is invalid
+     */
+    static double readDurations(File report, Map<String, Double> suiteDurations)
+            throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(report))) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                return readDurations(reader, suiteDurations);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    // The report is <result><suites><suite><name/><duration/><cases/></suite>...</suites><duration/></result>
+    private static double readDurations(XMLStreamReader reader, Map<String, Double> suiteDurations)
+            throws IOException, XMLStreamException {
+        int depth = 0;
+        boolean suitesRead = false;
+        double total = -1;
+        double suiteTotal = 0;
+        String suiteName = null;
+        double suiteDuration = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while reading test report");
+                }
+                depth++;
+                String name = reader.getLocalName();
+                if (depth == 2 && "duration".equals(name)) {
+                    total = parseDuration(reader.getElementText());
+                    if (suitesRead) {
+                        // Nothing needed follows
+                        return total;
+                    }
+                    depth--;
+                } else if (depth == 3 && "suite".equals(name)) {
+                    suiteName = "";
+                    suiteDuration = 0;
+                } else if (depth == 4 && suiteName != null && "name".equals(name)) {
+                    suiteName = reader.getElementText().trim();
+                    depth--;
+                } else if (depth == 4 && suiteName != null && "duration".equals(name)) {
+                    suiteDuration = parseDuration(reader.getElementText());
+                    depth--;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 2 && "suites".equals(reader.getLocalName())) {
+                    suitesRead = true;
+                } else if (depth == 3 && suiteName != null) {
+                    suiteTotal += suiteDuration;
+                    if (suiteDurations != null) {
+                        // Suites from different report files may have the same name
+                        suiteDurations.merge(suiteName, suiteDuration, Double::sum);
+                    }
+                    suiteName = null;
+                }
+                depth--;
+            }
+        }
+        // Reports written by old versions of the JUnit plugin have no total duration
+        return total >= 0 ? total : suiteTotal;
+    }
+
+    private static double parseDuration(String text) {
+        try {
+            return Math.max(0, Double.parseDouble(text.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
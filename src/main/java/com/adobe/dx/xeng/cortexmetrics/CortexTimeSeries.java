@@ -0,0 +1,145 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * A single sample and the labels identifying its series, written to Cortex as a {@code prometheus.TimeSeries} message
+ * by {@link CortexWriteRequestEncoder}. Unlike the generated protobuf messages no builders or label messages are
+ * created, the labels are already encoded, and the encoded size is calculated once.
+ *
+ * @author saville
+ */
+final class CortexTimeSeries {
+    // Field tags from prometheus.proto
+    private static final int TIMESERIES_SAMPLES_TAG = 2 << 3 | 2;
+    private static final int SAMPLE_VALUE_TAG = 1 << 3 | 1;
+    private static final int SAMPLE_TIMESTAMP_TAG = 2 << 3;
+
+    private final CortexLabels labels;
+    private final double value;
+    private final long timestamp;
+    private final int sampleSize;
+    private final int encodedSize;
+
+    /**
+     * Creates a series with a single sample.
+     * @param labels the labels of the series
+     * @param value the sample value
+     * @param timestamp the sample timestamp in milliseconds
+     */
+    CortexTimeSeries(CortexLabels labels, double value, long timestamp) {
+        this.labels = labels;
+        this.value = value;
+        this.timestamp = timestamp;
+
+        // Calculate the message size up front, it is needed both to batch and to write the series
+        sampleSize = computeSampleSize(value, timestamp);
+        encodedSize = labels.getEncodedSize() + 1 + CodedOutputStream.computeUInt32SizeNoTag(sampleSize) + sampleSize;
+    }
+
+    /**
+     * Creates a series with a single sample.
+     * @param labelNames the label names
+     * @param labelValues the label values in the same order as the names
+     * @param value the sample value
+     * @param timestamp the sample timestamp in milliseconds
+     */
+    CortexTimeSeries(String[] labelNames, String[] labelValues, double value, long timestamp) {
+        this(CortexLabels.of(labelNames, labelValues), value, timestamp);
+    }
+
+    /**
+     * Creates a series from the first sample of a protobuf message.
+     * @param timeSeries the message
+     * @return the series
+     */
+    static CortexTimeSeries fromProto(Prometheus.TimeSeries timeSeries) {
+        int count = timeSeries.getLabelsCount();
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = timeSeries.getLabels(i).getName();
+            values[i] = timeSeries.getLabels(i).getValue();
+        }
+        Prometheus.Sample sample = timeSeries.getSamplesCount() > 0 ? timeSeries.getSamples(0)
+                : Prometheus.Sample.getDefaultInstance();
+        return new CortexTimeSeries(names, values, sample.getValue(), sample.getTimestamp());
+    }
+
+    CortexLabels getLabels() {
+        return labels;
+    }
+
+    double getValue() {
+        return value;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Retrieves the size of the encoded {@code TimeSeries} message, excluding its own tag and length.
+     * @return the size in bytes
+     */
+    int getEncodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * Writes the {@code TimeSeries} message, excluding its own tag and length. Fields with default values are omitted
+     * exactly as the generated protobuf code does, so the output is identical.
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    void writeTo(CodedOutputStream out) throws IOException {
+        labels.writeTo(out);
+        out.writeUInt32NoTag(TIMESERIES_SAMPLES_TAG);
+        out.writeUInt32NoTag(sampleSize);
+        if (value != 0D) {
+            out.writeUInt32NoTag(SAMPLE_VALUE_TAG);
+            out.writeDoubleNoTag(value);
+        }
+        if (timestamp != 0L) {
+            out.writeUInt32NoTag(SAMPLE_TIMESTAMP_TAG);
+            out.writeInt64NoTag(timestamp);
+        }
+    }
+
+    private static int computeSampleSize(double value, long timestamp) {
+        int size = 0;
+        if (value != 0D) {
+            size += 1 + 8;
+        }
+        if (timestamp != 0L) {
+            size += 1 + CodedOutputStream.computeInt64SizeNoTag(timestamp);
+        }
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CortexTimeSeries)) {
+            return false;
+        }
+        CortexTimeSeries that = (CortexTimeSeries) o;
+        return Double.compare(value, that.value) == 0 && timestamp == that.timestamp && labels.equals(that.labels);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(labels, value, timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return labels + " " + value + " " + timestamp;
+    }
+}
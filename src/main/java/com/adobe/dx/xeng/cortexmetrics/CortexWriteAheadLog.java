@@ -0,0 +1,514 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus;
+import com.google.protobuf.CodedOutputStream;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the series waiting in the write queue, so series that could not be sent are not lost when
+ * Jenkins restarts. The log is split into segment files which are appended to sequentially and synced to disk in the
+ * background rather than on every append. A segment is deleted once it is no longer appended to and every series in
+ * it has been acknowledged, and a new segment is started whenever everything appended so far has been acknowledged.
+ * Series left in the log are read back in chunks after it is opened, so each series is sent at least once without
+ * holding the whole log in memory. Syncing to disk
+ * happens outside the lock appends take, so appends never wait for the disk.
+ *
+ * <p>The total size of the segments is limited. Once the limit is reached, series are not logged until enough
+ * segments have been deleted, which happens as Cortex accepts the series in them.</p>
+ *
+ * <p>Each record is a magic number, the length and CRC32 of its payload followed by the payload, which is the
+ * endpoint and the serialized series. Bearer tokens are only ever stored encrypted. Corrupt records are skipped by
+ * searching for the next magic number that starts a valid record, and a torn record at the end of a segment after a
+ * crash ends the segment.</p>
+ *
+ * @author saville
+ */
+final class CortexWriteAheadLog {
+    private static final Logger LOGGER = Logger.getLogger(CortexWriteAheadLog.class.getName());
+
+    /**
+     * The size after which a new segment is started.
+     */
+    static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * How often appended records are synced to disk, in milliseconds.
+     */
+    private static final long SYNC_INTERVAL = 1000;
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int RECORD_MAGIC = 0x4357414c;
+    private static final int HEADER_SIZE = 12;
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicLong totalSize = new AtomicLong();
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics write-ahead log sync"));
+    // Guarded by replayLock, held apart from this so reading back segments never holds up appends
+    private final Object replayLock = new Object();
+    private final Deque<Segment> unreplayed = new ArrayDeque<>();
+    private Segment replaying;
+    private ByteBuffer replayBuffer;
+    private int replayPosition;
+    // Guarded by this
+    private Segment active;
+    private boolean dirty;
+    private boolean closed;
+    private boolean full;
+
+    private CortexWriteAheadLog(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Opens the log in a directory. Series left in existing segments are read back by {@link #replay(int)}.
+     * @param directory the directory containing the segments
+     * @param maxSize the maximum total size of the segments in bytes
+     * @return the log
+     * @throws IOException if the directory or a new segment could not be created
+     */
+    static CortexWriteAheadLog open(File directory, long maxSize) throws IOException {
+        Files.createDirectories(directory.toPath());
+        CortexWriteAheadLog log = new CortexWriteAheadLog(directory, maxSize);
+        long lastId = 0;
+        for (File file : log.listSegments()) {
+            Segment segment = new Segment(log, getSegmentId(file), file);
+            segment.size = file.length();
+            log.totalSize.addAndGet(segment.size);
+            lastId = Math.max(lastId, segment.id);
+            log.unreplayed.add(segment);
+        }
+        synchronized (log) {
+            log.active = log.createSegment(lastId + 1);
+        }
+        log.syncer.scheduleWithFixedDelay(log::syncQuietly, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        return log;
+    }
+
+    /**
+     * Reads the next series left in the segments that existed when the log was opened, in the order they were
+     * appended. A segment is sealed once all its series have been read, so it is deleted once they have all been
+     * acknowledged.
+     * @param maxRecords the maximum number of series to read
+     * @return the series to send again, empty once every segment has been read
+     */
+    List<Record> replay(int maxRecords) {
+        List<Record> records = new ArrayList<>();
+        synchronized (replayLock) {
+            while (records.size() < maxRecords) {
+                if (replaying == null && !startReplay()) {
+                    break;
+                }
+                Record record = readNext();
+                if (record == null) {
+                    // Anything left is a record torn by a crash
+                    replaying.seal();
+                    replaying = null;
+                    replayBuffer = null;
+                } else {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Whether series left in existing segments remain to be read back.
+     * @return true if {@link #replay(int)} may return more series
+     */
+    boolean isReplaying() {
+        synchronized (replayLock) {
+            return replaying != null || !unreplayed.isEmpty();
+        }
+    }
+
+    /**
+     * Appends a series to the log. The record is not synced to disk immediately.
+     * @param endpoint the endpoint the series is written to
+     * @param timeSeries the series
+     * @return the segment to acknowledge once the series has been sent, or null if the log is full and the series
+     * was not logged
+     * @throws IOException if the record could not be written
+     */
+    Segment append(CortexEndpoint endpoint, CortexTimeSeries timeSeries) throws IOException {
+        ByteBuffer record = encode(endpoint, timeSeries);
+        int recordSize = record.remaining();
+        Segment previous = null;
+        Segment segment;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            if (totalSize.get() + recordSize > maxSize) {
+                if (!full) {
+                    full = true;
+                    LOGGER.log(Level.WARNING, "Cortex write-ahead log has reached its maximum size of {0} bytes, "
+                            + "queued series are not logged until it has space", maxSize);
+                }
+                return null;
+            }
+            full = false;
+            if (active.channel.position() + recordSize > SEGMENT_SIZE && active.channel.position() > 0) {
+                previous = roll();
+            }
+            segment = active;
+            segment.outstanding.incrementAndGet();
+            try {
+                while (record.hasRemaining()) {
+                    segment.channel.write(record);
+                }
+            } catch (IOException e) {
+                segment.outstanding.decrementAndGet();
+                throw e;
+            } finally {
+                int written = recordSize - record.remaining();
+                segment.size += written;
+                totalSize.addAndGet(written);
+            }
+            dirty = true;
+        }
+        if (previous != null) {
+            previous.forceAndSeal();
+        }
+        return segment;
+    }
+
+    /**
+     * Syncs any appended records to disk. If every series in the current segment has already been acknowledged, a
+     * new segment is started so the current one can be deleted.
+     * @throws IOException if the records could not be synced
+     */
+    void sync() throws IOException {
+        FileChannel channel = null;
+        Segment previous = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (active.outstanding.get() == 0 && active.channel.position() > 0) {
+                previous = roll();
+            } else if (dirty) {
+                channel = active.channel;
+                dirty = false;
+            }
+        }
+        // Appends continue while syncing, they are synced next time
+        if (previous != null) {
+            previous.forceAndSeal();
+        } else if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled and synced while closing it
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment. Must be called while holding the lock, the previous segment is returned to be synced and
+     * sealed once the lock is released.
+     */
+    private Segment roll() throws IOException {
+        Segment previous = active;
+        active = createSegment(previous.id + 1);
+        // The previous segment is synced by whoever rolled it
+        dirty = false;
+        return previous;
+    }
+
+    /**
+     * Syncs and closes the log. Unacknowledged series remain on disk to be sent when the log is next opened.
+     */
+    void close() {
+        syncer.shutdownNow();
+        Segment last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = active;
+        }
+        last.forceAndSeal();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to sync Cortex write-ahead log", e);
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(getSegmentId(a), getSegmentId(b)));
+        return files;
+    }
+
+    private static long getSegmentId(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(this, id, file);
+        segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        return segment;
+    }
+
+    /**
+     * Maps the next existing segment to read back. Must be called while holding the replay lock.
+     * @return false if there are no more segments
+     */
+    private boolean startReplay() {
+        Segment segment;
+        while ((segment = unreplayed.poll()) != null) {
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                // The mapping stays valid once the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                replaying = segment;
+                replayBuffer = buffer;
+                replayPosition = 0;
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read Cortex write-ahead log segment " + segment.file, e);
+                segment.seal();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next valid record of the segment being read back. After a corrupt record the following bytes are
+     * searched for the next magic number, so each byte is only checked once. Must be called while holding the replay
+     * lock.
+     * @return the record, or null if there are no more valid records in the segment
+     */
+    private Record readNext() {
+        int corruptFrom = -1;
+        while (replayBuffer.limit() - replayPosition >= HEADER_SIZE) {
+            Record record = read(replayBuffer, replayPosition, replaying);
+            if (record == null) {
+                if (corruptFrom < 0) {
+                    corruptFrom = replayPosition;
+                }
+                replayPosition = findMagic(replayBuffer, replayPosition + 1);
+                continue;
+            }
+            if (corruptFrom >= 0) {
+                LOGGER.log(Level.WARNING, "Skipped {0} corrupt bytes at offset {1} of Cortex write-ahead log "
+                        + "segment {2}", new Object[] {replayPosition - corruptFrom, corruptFrom, replaying.file});
+            }
+            replaying.outstanding.incrementAndGet();
+            replayPosition += HEADER_SIZE + replayBuffer.getInt(replayPosition + 4);
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the next position from which a record could start.
+     * @return the position of the next magic number, or the end of the buffer if there is none
+     */
+    private static int findMagic(ByteBuffer buffer, int from) {
+        for (int position = from; position <= buffer.limit() - HEADER_SIZE; position++) {
+            if (buffer.getInt(position) == RECORD_MAGIC) {
+                return position;
+            }
+        }
+        return buffer.limit();
+    }
+
+    /**
+     * Reads the record at a position, if there is a valid one.
+     * @return the record, or null if the bytes at the position are not a valid record
+     */
+    private static Record read(ByteBuffer buffer, int position, Segment segment) {
+        if (buffer.getInt(position) != RECORD_MAGIC) {
+            return null;
+        }
+        int length = buffer.getInt(position + 4);
+        int checksum = buffer.getInt(position + 8);
+        if (length <= 0 || length > buffer.limit() - position - HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + HEADER_SIZE);
+        payload.limit(position + HEADER_SIZE + length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        try {
+            return decode(bytes, segment);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encode(CortexEndpoint endpoint, CortexTimeSeries timeSeries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 256 + timeSeries.getEncodedSize());
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Leave room for the header, filled in once the payload is known
+        out.writeInt(RECORD_MAGIC);
+        out.writeLong(0);
+        endpoint.serialize(out);
+        CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+        timeSeries.writeTo(codedOut);
+        codedOut.flush();
+        out.flush();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.limit() - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt(4, length);
+        record.putInt(8, (int) crc.getValue());
+        return record;
+    }
+
+    private static Record decode(byte[] payload, Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        CortexEndpoint endpoint = CortexEndpoint.deserialize(in);
+        return new Record(endpoint, CortexTimeSeries.fromProto(Prometheus.TimeSeries.parseFrom(in)), segment);
+    }
+
+    /**
+     * A series read back from the log.
+     */
+    static final class Record {
+        private final CortexEndpoint endpoint;
+        private final CortexTimeSeries timeSeries;
+        private final Segment segment;
+
+        private Record(CortexEndpoint endpoint, CortexTimeSeries timeSeries, Segment segment) {
+            this.endpoint = endpoint;
+            this.timeSeries = timeSeries;
+            this.segment = segment;
+        }
+
+        CortexEndpoint getEndpoint() {
+            return endpoint;
+        }
+
+        CortexTimeSeries getTimeSeries() {
+            return timeSeries;
+        }
+
+        Segment getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * A segment file and the number of its series not yet acknowledged.
+     */
+    static final class Segment {
+        private final CortexWriteAheadLog log;
+        private final long id;
+        private final File file;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // Only modified while holding the log lock, and never once sealed
+        private FileChannel channel;
+        private long size;
+        private boolean sealed;
+        private boolean deleted;
+
+        private Segment(CortexWriteAheadLog log, long id, File file) {
+            this.log = log;
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * Acknowledges that a series in this segment has been sent, or can never be sent.
+         */
+        void acknowledge() {
+            if (outstanding.decrementAndGet() == 0) {
+                deleteIfDone();
+            }
+        }
+
+        /**
+         * Syncs the segment to disk, then seals it. Called once the segment is no longer appended to.
+         */
+        private void forceAndSeal() {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to sync Cortex write-ahead log segment " + file, e);
+            }
+            seal();
+        }
+
+        private void seal() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close Cortex write-ahead log segment " + file, e);
+                }
+            }
+            synchronized (this) {
+                sealed = true;
+            }
+            deleteIfDone();
+        }
+
+        private synchronized void deleteIfDone() {
+            if (!sealed || deleted || outstanding.get() > 0) {
+                return;
+            }
+            deleted = true;
+            log.totalSize.addAndGet(-size);
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete Cortex write-ahead log segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import java.io.IOException;
+
+/**
+ * Thrown when Cortex rejects a write request.
+ *
+ * @author saville
+ */
+class CortexWriteException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfter;
+
+    /**
+     * Constructor.
+     * @param statusCode the HTTP status code returned by Cortex
+     * @param message the detail message
+     * @param retryAfter the delay in milliseconds requested by Cortex before retrying, or -1 if none was requested
+     */
+    CortexWriteException(int statusCode, String message, long retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Whether the request may succeed if sent again. Cortex returns 5xx errors while ingesters are unavailable and 429
+     * when rate limiting, any other error means the request itself is invalid.
+     * @return true if the request should be retried
+     */
+    boolean isRetryable() {
+        return statusCode == 429 || statusCode / 100 == 5;
+    }
+}
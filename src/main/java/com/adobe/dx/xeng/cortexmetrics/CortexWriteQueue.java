@@ -0,0 +1,627 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig;
+import hudson.Extension;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide queue of time series waiting to be written to Cortex, similar to the Prometheus remote write queue
+ * manager. Series are hashed by their labels onto a number of shards, each with its own sender thread, so samples for
+ * the same series are always sent in order while independent series are sent concurrently. Each shard coalesces series
+ * into a single write request per endpoint once a batch is full (by series count or payload size) or its oldest series
+ * has waited for the batch send deadline.
+ *
+ * <p>The number of shards is periodically recalculated from the rate series are queued and the time it takes to send
+ * them, within the configured bounds.</p>
+ *
+ * <p>If enabled, queued series are also appended to a {@link CortexWriteAheadLog} and acknowledged once Cortex has
+ * accepted or permanently rejected them, so series that could not be sent are queued again after a restart, as the
+ * queue has room for them. Logged series that failed to send are also queued again after a delay while Jenkins is
+ * running.</p>
+ *
+ * @author saville
+ */
+final class CortexWriteQueue {
+    private static final Logger LOGGER = Logger.getLogger(CortexWriteQueue.class.getName());
+
+    /**
+     * The maximum uncompressed size of a single write request.
+     */
+    static final int MAX_BYTES_PER_SEND = 1024 * 1024;
+
+    /**
+     * How long to wait for queued series to be sent on shutdown.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
+    /**
+     * How often to recalculate the number of shards, in seconds.
+     */
+    private static final long RESHARD_INTERVAL = 10;
+
+    /**
+     * Weight given to the latest interval when smoothing the observed rates.
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * Only reshard when the desired number of shards differs from the current number by more than this ratio.
+     */
+    private static final double RESHARD_TOLERANCE = 0.3;
+
+    /**
+     * The fraction of the current backlog the shards should aim to catch up on every second.
+     */
+    private static final double BACKLOG_CATCHUP = 0.05;
+
+    /**
+     * How long to wait before queueing logged series that failed to send again, in seconds.
+     */
+    private static final long REDELIVERY_DELAY = 60;
+
+    /**
+     * How often to queue more of the series left in the write-ahead log, in seconds.
+     */
+    private static final long REPLAY_INTERVAL = 1;
+
+    /**
+     * The directory under the Jenkins root containing the write-ahead log.
+     */
+    private static final String WRITE_AHEAD_LOG_DIR = "cortex-metrics/wal";
+
+    private static CortexWriteQueue instance;
+
+    private final CortexWriteAheadLog writeAheadLog;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder samplesIn = new LongAdder();
+    private final LongAdder samplesOut = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    // Guards swapping the shards so no series is added to a stopped shard
+    private final ReadWriteLock shardsLock = new ReentrantReadWriteLock();
+    // Also schedules the redelivery of series that failed to send
+    private final ScheduledExecutorService resharder = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Cortex metrics resharding"));
+    private Shard[] shards;
+    private boolean running = true;
+    private volatile ScheduledFuture<?> replayer;
+
+    // Only accessed from the resharding thread
+    private double samplesInRate = -1;
+    private double timePerSample = -1;
+
+    private CortexWriteQueue(int numShards, CortexWriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        shards = startShards(numShards, new Shard[0]);
+    }
+
+    /**
+     * Retrieves the controller-wide queue, starting its senders on first use.
+     * @return the write queue
+     */
+    static synchronized CortexWriteQueue get() {
+        if (instance == null) {
+            CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+            instance = new CortexWriteQueue(config.getMinShards(),
+                    config.isWriteAheadLogEnabled() ? openWriteAheadLog() : null);
+            if (instance.writeAheadLog != null && instance.writeAheadLog.isReplaying()) {
+                LOGGER.log(Level.INFO, "Sending series left in the Cortex write-ahead log");
+                // The first chunk is queued before anything new, the rest as the queue drains
+                instance.replayWriteAheadLog();
+                instance.replayer = instance.resharder.scheduleWithFixedDelay(instance::replayWriteAheadLog,
+                        REPLAY_INTERVAL, REPLAY_INTERVAL, TimeUnit.SECONDS);
+            }
+            instance.resharder.scheduleWithFixedDelay(instance::reshardIfNeeded, RESHARD_INTERVAL, RESHARD_INTERVAL,
+                    TimeUnit.SECONDS);
+        }
+        return instance;
+    }
+
+    private static CortexWriteAheadLog openWriteAheadLog() {
+        File directory = new File(Jenkins.get().getRootDir(), WRITE_AHEAD_LOG_DIR);
+        try {
+            return CortexWriteAheadLog.open(directory,
+                    CortexMetricsGlobalConfig.get().getWriteAheadLogMaxSize() * 1024L * 1024L);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open Cortex write-ahead log in " + directory
+                    + ", queued metrics will not survive a restart", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queues as many of the series left in the write-ahead log when it was opened as the queue has room for, so the
+     * log is never read into memory all at once.
+     */
+    private void replayWriteAheadLog() {
+        try {
+            int room = CortexMetricsGlobalConfig.get().getQueueCapacity() - size.get();
+            if (room <= 0) {
+                return;
+            }
+            List<CortexWriteAheadLog.Record> records = writeAheadLog.replay(room);
+            if (records.isEmpty()) {
+                ScheduledFuture<?> scheduled = replayer;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                return;
+            }
+            LOGGER.log(Level.FINE, "Sending {0} series left in the Cortex write-ahead log", records.size());
+            Acknowledgement acknowledgement = new Acknowledgement(records.size());
+            long now = System.currentTimeMillis();
+            shardsLock.readLock().lock();
+            try {
+                if (!running) {
+                    // Still in the log, so they are sent again after the restart
+                    return;
+                }
+                size.addAndGet(records.size());
+                for (CortexWriteAheadLog.Record record : records) {
+                    Shard shard = getShard(record.getTimeSeries());
+                    shard.queue.add(new PendingSeries(record.getEndpoint(), record.getTimeSeries(), acknowledgement,
+                            record.getSegment(), now));
+                }
+            } finally {
+                shardsLock.readLock().unlock();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay Cortex write-ahead log", e);
+        }
+    }
+
+    /**
+     * Adds series to the queue to be sent to the given endpoint.
+     * @param endpoint the endpoint to write to
+     * @param timeSeriesList the series to write
+     * @return a future completed once all the series have been sent, or null if the queue is full or shutting down
+     * and the series were dropped
+     */
+    CompletableFuture<Void> offer(CortexEndpoint endpoint, List<CortexTimeSeries> timeSeriesList) {
+        int capacity = CortexMetricsGlobalConfig.get().getQueueCapacity();
+        if (size.addAndGet(timeSeriesList.size()) > capacity) {
+            size.addAndGet(-timeSeriesList.size());
+            return null;
+        }
+        Acknowledgement acknowledgement = new Acknowledgement(timeSeriesList.size());
+        long now = System.currentTimeMillis();
+        shardsLock.readLock().lock();
+        try {
+            if (!running) {
+                size.addAndGet(-timeSeriesList.size());
+                return null;
+            }
+            for (CortexTimeSeries timeSeries : timeSeriesList) {
+                Shard shard = getShard(timeSeries);
+                shard.queue.add(new PendingSeries(endpoint, timeSeries, acknowledgement, log(endpoint, timeSeries),
+                        now));
+            }
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+        samplesIn.add(timeSeriesList.size());
+        return acknowledgement.future;
+    }
+
+    /**
+     * Queues logged series that failed to send again once the redelivery delay has passed. Series that are not sent
+     * before Jenkins shuts down remain in the log.
+     * @param failed the series that failed to send
+     */
+    private void scheduleRedelivery(List<PendingSeries> failed) {
+        try {
+            resharder.schedule(() -> redeliver(failed), REDELIVERY_DELAY, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the series are sent again after the restart
+        }
+    }
+
+    private void redeliver(List<PendingSeries> failed) {
+        // The callers were already told the series failed, so nobody waits for them this time
+        Acknowledgement acknowledgement = new Acknowledgement(failed.size());
+        long now = System.currentTimeMillis();
+        shardsLock.readLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            // These were already accepted into the queue so ignore the capacity
+            size.addAndGet(failed.size());
+            for (PendingSeries pending : failed) {
+                getShard(pending.timeSeries).queue.add(new PendingSeries(pending.endpoint, pending.timeSeries,
+                        acknowledgement, pending.segment, now));
+            }
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a series to the write-ahead log, if enabled.
+     * @return the segment to acknowledge once the series is sent, or null if the series is not logged or the log
+     * is full
+     */
+    private CortexWriteAheadLog.Segment log(CortexEndpoint endpoint, CortexTimeSeries timeSeries) {
+        if (writeAheadLog == null) {
+            return null;
+        }
+        try {
+            return writeAheadLog.append(endpoint, timeSeries);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to append to Cortex write-ahead log", e);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the shard for a series from the hash of its labels, so the same series always maps to the same shard.
+     * Must be called while holding the shards lock.
+     */
+    private Shard getShard(CortexTimeSeries timeSeries) {
+        return shards[Math.floorMod(timeSeries.getLabels().hashCode(), shards.length)];
+    }
+
+    /**
+     * Retrieves the current number of sender shards.
+     * @return the number of shards
+     */
+    int getNumShards() {
+        shardsLock.readLock().lock();
+        try {
+            return shards.length;
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates and starts shards, which only begin sending once all previous shards have finished so that samples for
+     * the same series remain in order across resharding.
+     */
+    private Shard[] startShards(int numShards, Shard[] previous) {
+        Shard[] newShards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            newShards[i] = new Shard(i, previous);
+            newShards[i].thread.start();
+        }
+        return newShards;
+    }
+
+    private void reshardIfNeeded() {
+        try {
+            CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+            int numShards = getNumShards();
+            int desiredShards = calculateDesiredShards(numShards, config.getMinShards(), config.getMaxShards());
+            if (desiredShards != numShards) {
+                LOGGER.log(Level.FINE, "Resharding Cortex write queue from {0} to {1} shards",
+                        new Object[] {numShards, desiredShards});
+                reshard(desiredShards);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to reshard Cortex write queue", e);
+        }
+    }
+
+    private int calculateDesiredShards(int numShards, int minShards, int maxShards) {
+        // Update the smoothed rates from the last interval
+        double intervalSamplesInRate = samplesIn.sumThenReset() / (double) RESHARD_INTERVAL;
+        long intervalSamplesOut = samplesOut.sumThenReset();
+        long intervalSendNanos = sendNanos.sumThenReset();
+        samplesInRate = samplesInRate < 0 ? intervalSamplesInRate
+                : EWMA_WEIGHT * intervalSamplesInRate + (1 - EWMA_WEIGHT) * samplesInRate;
+        if (intervalSamplesOut > 0) {
+            double intervalTimePerSample = intervalSendNanos / 1e9 / intervalSamplesOut;
+            timePerSample = timePerSample < 0 ? intervalTimePerSample
+                    : EWMA_WEIGHT * intervalTimePerSample + (1 - EWMA_WEIGHT) * timePerSample;
+        }
+
+        int desiredShards = numShards;
+        if (timePerSample >= 0) {
+            // Each shard sends serially, so this is how many shards are kept busy by the incoming series
+            double desired = timePerSample * (samplesInRate + BACKLOG_CATCHUP * size.get());
+            if (Math.abs(desired - numShards) > RESHARD_TOLERANCE * numShards) {
+                desiredShards = (int) Math.ceil(desired);
+            }
+        }
+        return Math.max(minShards, Math.min(maxShards, desiredShards));
+    }
+
+    private void reshard(int numShards) {
+        shardsLock.writeLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            Shard[] previous = shards;
+            for (Shard shard : previous) {
+                shard.running = false;
+            }
+            shards = startShards(numShards, previous);
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+    private void shutdown() throws InterruptedException {
+        resharder.shutdownNow();
+        Shard[] current;
+        shardsLock.writeLock().lock();
+        try {
+            running = false;
+            current = shards;
+            for (Shard shard : current) {
+                shard.running = false;
+            }
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+        try {
+            long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+            for (Shard shard : current) {
+                shard.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } finally {
+            // Anything not sent by now is sent again after the restart
+            if (writeAheadLog != null) {
+                writeAheadLog.close();
+            }
+        }
+    }
+
+    /**
+     * Tracks when all the series added to the queue together have been sent.
+     */
+    private static final class Acknowledgement {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicInteger remaining;
+
+        private Acknowledgement(int count) {
+            remaining = new AtomicInteger(count);
+        }
+
+        private void sent() {
+            if (remaining.decrementAndGet() == 0) {
+                future.complete(null);
+            }
+        }
+
+        private void failed(Throwable cause) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * A series waiting in the queue.
+     */
+    private static final class PendingSeries {
+        private final CortexEndpoint endpoint;
+        private final CortexTimeSeries timeSeries;
+        private final Acknowledgement acknowledgement;
+        private final CortexWriteAheadLog.Segment segment;
+        private final long enqueuedAt;
+
+        private PendingSeries(CortexEndpoint endpoint, CortexTimeSeries timeSeries,
+                              Acknowledgement acknowledgement, CortexWriteAheadLog.Segment segment, long enqueuedAt) {
+            this.endpoint = endpoint;
+            this.timeSeries = timeSeries;
+            this.acknowledgement = acknowledgement;
+            this.segment = segment;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        /**
+         * Removes the series from the write-ahead log, if it was logged.
+         */
+        private void acknowledgeSegment() {
+            if (segment != null) {
+                segment.acknowledge();
+            }
+        }
+    }
+
+    /**
+     * Series being coalesced into a single write request for an endpoint.
+     */
+    private static final class Batch {
+        private final CortexEndpoint endpoint;
+        private final long createdAt;
+        private final List<CortexTimeSeries> timeSeriesList = new ArrayList<>();
+        private final List<PendingSeries> pendingSeries = new ArrayList<>();
+        private int bytes;
+
+        private Batch(CortexEndpoint endpoint, long createdAt) {
+            this.endpoint = endpoint;
+            this.createdAt = createdAt;
+        }
+
+        private boolean fits(CortexTimeSeries timeSeries) {
+            return timeSeriesList.isEmpty() || bytes + CortexWriteRequestEncoder.computeSize(timeSeries) <= MAX_BYTES_PER_SEND;
+        }
+
+        private void add(PendingSeries pending) {
+            timeSeriesList.add(pending.timeSeries);
+            pendingSeries.add(pending);
+            bytes += CortexWriteRequestEncoder.computeSize(pending.timeSeries);
+        }
+    }
+
+    /**
+     * A single sender thread and the series assigned to it.
+     */
+    private final class Shard {
+        private final BlockingQueue<PendingSeries> queue = new LinkedBlockingQueue<>();
+        // Only accessed from the shard thread
+        private final Map<CortexEndpoint, Batch> batches = new LinkedHashMap<>();
+        private final Shard[] previous;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private Shard(int index, Shard[] previous) {
+            this.previous = previous;
+            thread = new Thread(this::run, "Cortex metrics sender " + index);
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                // Series may still be waiting in the shards this one replaced
+                for (Shard shard : previous) {
+                    shard.thread.join();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            while (running || !queue.isEmpty()) {
+                CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+                int maxSamplesPerSend = config.getMaxSamplesPerSend();
+                long deadline = config.getBatchSendDeadline() * 1000L;
+                try {
+                    PendingSeries pending = queue.poll(getWaitTime(deadline), TimeUnit.MILLISECONDS);
+                    if (pending != null) {
+                        size.decrementAndGet();
+                        Batch batch = batches.get(pending.endpoint);
+                        if (batch == null) {
+                            batch = new Batch(pending.endpoint, pending.enqueuedAt);
+                            batches.put(pending.endpoint, batch);
+                        }
+                        if (!batch.fits(pending.timeSeries)) {
+                            flush(batch);
+                            batch = new Batch(pending.endpoint, pending.enqueuedAt);
+                            batches.put(pending.endpoint, batch);
+                        }
+                        batch.add(pending);
+                        if (batch.timeSeriesList.size() >= maxSamplesPerSend) {
+                            flush(batch);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stop waiting and send what we have
+                    running = false;
+                }
+                flushExpired(running ? deadline : 0);
+            }
+            // Send anything left over from the last iteration
+            flushExpired(0);
+        }
+
+        private long getWaitTime(long deadline) {
+            long wait = deadline;
+            long now = System.currentTimeMillis();
+            for (Batch batch : batches.values()) {
+                wait = Math.min(wait, batch.createdAt + deadline - now);
+            }
+            return Math.max(wait, 0);
+        }
+
+        private void flushExpired(long deadline) {
+            long now = System.currentTimeMillis();
+            Iterator<Batch> iterator = batches.values().iterator();
+            while (iterator.hasNext()) {
+                Batch batch = iterator.next();
+                if (now - batch.createdAt >= deadline) {
+                    iterator.remove();
+                    send(batch);
+                }
+            }
+        }
+
+        private void flush(Batch batch) {
+            batches.remove(batch.endpoint);
+            send(batch);
+        }
+
+        private void send(Batch batch) {
+            long start = System.nanoTime();
+            try {
+                CortexRemoteWriter.write(batch.endpoint, batch.timeSeriesList);
+                for (PendingSeries pending : batch.pendingSeries) {
+                    pending.acknowledgeSegment();
+                    pending.acknowledgement.sent();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to send " + batch.timeSeriesList.size() + " series to Cortex at "
+                        + batch.endpoint, e);
+                // Cortex will never accept a rejected request, otherwise keep the logged series to send again
+                boolean rejected = e instanceof CortexWriteException && !((CortexWriteException) e).isRetryable();
+                List<PendingSeries> redeliver = new ArrayList<>();
+                for (PendingSeries pending : batch.pendingSeries) {
+                    if (rejected) {
+                        pending.acknowledgeSegment();
+                    } else if (pending.segment != null) {
+                        redeliver.add(pending);
+                    }
+                    pending.acknowledgement.failed(e);
+                }
+                if (!redeliver.isEmpty()) {
+                    scheduleRedelivery(redeliver);
+                }
+            } finally {
+                sendNanos.add(System.nanoTime() - start);
+                samplesOut.add(batch.timeSeriesList.size());
+            }
+        }
+    }
+
+    /**
+     * Sends the series left in the write-ahead log once Jenkins has started.
+     */
+    @Extension
+    public static final class StartupListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            CortexMetricsGlobalConfig config = CortexMetricsGlobalConfig.get();
+            if ((config.isBatchingEnabled() || config.isAllRunsEnabled()) && config.isWriteAheadLogEnabled()) {
+                get();
+            }
+        }
+    }
+
+    /**
+     * Sends any queued series before Jenkins shuts down.
+     */
+    // Runs before the HTTP clients are closed
+    @Extension(ordinal = 100)
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            CortexWriteQueue queue;
+            synchronized (CortexWriteQueue.class) {
+                queue = instance;
+                instance = null;
+            }
+            if (queue == null) {
+                return;
+            }
+            try {
+                queue.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
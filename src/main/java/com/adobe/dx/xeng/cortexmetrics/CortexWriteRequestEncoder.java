@@ -0,0 +1,79 @@
+package com.adobe.dx.xeng.cortexmetrics;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes {@code prometheus.WriteRequest} messages in the protobuf wire format directly from {@link CortexTimeSeries},
+ * producing exactly the same bytes as building and serializing the generated {@code Prometheus.WriteRequest}.
+ *
+ * @author saville
+ */
+final class CortexWriteRequestEncoder {
+    // The tag of the repeated timeseries field in prometheus.proto
+    private static final int WRITE_REQUEST_TIMESERIES_TAG = 1 << 3 | 2;
+
+    private CortexWriteRequestEncoder() {}
+
+    /**
+     * Calculates the size of an encoded {@code TimeSeries} within a write request, including its tag and length.
+     * @param timeSeries the series
+     * @return the size in bytes
+     */
+    static int computeSize(CortexTimeSeries timeSeries) {
+        int size = timeSeries.getEncodedSize();
+        return 1 + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    /**
+     * Calculates the size of an encoded write request.
+     * @param timeSeriesList the series in the request
+     * @return the size in bytes
+     */
+    static int computeSize(List<CortexTimeSeries> timeSeriesList) {
+        int size = 0;
+        for (CortexTimeSeries timeSeries : timeSeriesList) {
+            size += computeSize(timeSeries);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a write request into a buffer, starting at its position.
+     * @param timeSeriesList the series in the request
+     * @param buffer the buffer, which must have enough space remaining
+     * @throws IOException if the buffer is too small
+     */
+    static void encode(List<CortexTimeSeries> timeSeriesList, ByteBuffer buffer) throws IOException {
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+        for (CortexTimeSeries timeSeries : timeSeriesList) {
+            encode(timeSeries, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Encodes a write request into a new array.
+     * @param timeSeriesList the series in the request
+     * @return the encoded request
+     * @throws IOException if the request could not be encoded
+     */
+    static byte[] encode(List<CortexTimeSeries> timeSeriesList) throws IOException {
+        byte[] bytes = new byte[computeSize(timeSeriesList)];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (CortexTimeSeries timeSeries : timeSeriesList) {
+            encode(timeSeries, out);
+        }
+        out.checkNoSpaceLeft();
+        return bytes;
+    }
+
+    private static void encode(CortexTimeSeries timeSeries, CodedOutputStream out) throws IOException {
+        out.writeUInt32NoTag(WRITE_REQUEST_TIMESERIES_TAG);
+        out.writeUInt32NoTag(timeSeries.getEncodedSize());
+        timeSeries.writeTo(out);
+    }
+}
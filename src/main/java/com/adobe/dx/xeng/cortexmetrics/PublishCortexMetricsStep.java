@@ -16,6 +16,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author saville
@@ -26,6 +29,7 @@ public class PublishCortexMetricsStep extends Step {
     private Secret bearerToken;
     private String namespace;
     private Map<String, String> labels = new HashMap<>();
+    private boolean wait;
 
     public Map<String, String> getLabels() {
         return labels;
@@ -63,16 +67,30 @@ public class PublishCortexMetricsStep extends Step {
         this.namespace = namespace;
     }
 
+    public boolean isWait() {
+        return wait;
+    }
+
+    @DataBoundSetter
+    public void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
     @DataBoundConstructor
     public PublishCortexMetricsStep() {}
 
     @Override
     public StepExecution start(StepContext stepContext) throws Exception {
-        return new Execution(url, bearerToken, namespace, labels, stepContext);
+        return new Execution(url, bearerToken, namespace, labels, wait, stepContext);
     }
 
-    static class Execution extends SynchronousStepExecution<Void> {
+    /**
+     * Hands the metrics off to be sent in the background, so a slow Cortex never blocks the pipeline. The step
+     * completes immediately unless waiting for Cortex to accept the metrics.
+     */
+    static class Execution extends StepExecution {
         private static final long serialVersionUID = 1L;
+        private static final Logger LOGGER = Logger.getLogger(Execution.class.getName());
 
         @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Only used when starting.")
         private transient String url;
@@ -86,29 +104,68 @@ public class PublishCortexMetricsStep extends Step {
         private transient final Run<?, ?> run;
         @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Only used when starting.")
         private transient final TaskListener taskListener;
+        private final boolean wait;
 
-        Execution(String url, Secret bearerToken, String namespace,
-                  Map<String, String> labels, final @Nonnull StepContext context)
+        Execution(String url, Secret bearerToken, String namespace, Map<String, String> labels, boolean wait,
+                  final @Nonnull StepContext context)
                 throws IOException, InterruptedException {
             super(context);
             this.url = url;
             this.bearerToken = bearerToken;
             this.namespace = namespace;
             this.labels = labels;
+            this.wait = wait;
             this.run = context.get(Run.class);
             this.taskListener = context.get(TaskListener.class);
         }
 
         @Override
-        protected Void run() throws Exception {
+        public boolean start() throws Exception {
+            run.addOrReplaceAction(new CortexPublishedAction());
+            CompletableFuture<Void> future;
             try {
                 CortexPublisher publisher = new CortexPublisher(run, url, bearerToken, namespace, labels);
-                publisher.send(taskListener);
+                future = publisher.sendAsync(taskListener);
             } catch(Exception e) {
                 taskListener.getLogger().println("Failed to send metrics to Cortex:");
                 e.printStackTrace(taskListener.getLogger());
+                getContext().onSuccess(null);
+                return true;
+            }
+
+            if (!wait) {
+                // The build log may already be closed when the send completes, so report failures to the system log
+                String runId = run.getExternalizableId();
+                future.whenComplete((result, e) -> {
+                    if (e != null) {
+                        LOGGER.log(Level.WARNING, "Failed to send metrics to Cortex for " + runId, e);
+                    }
+                });
+                getContext().onSuccess(null);
+                return true;
             }
-            return null;
+
+            future.whenComplete((result, e) -> {
+                if (e == null) {
+                    taskListener.getLogger().println("Successfully sent metrics to Cortex");
+                } else {
+                    taskListener.getLogger().println("Failed to send metrics to Cortex:");
+                    e.printStackTrace(taskListener.getLogger());
+                }
+                getContext().onSuccess(null);
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            // The metrics were only held in memory, so there is nothing left to wait for after a restart
+            getContext().onSuccess(null);
         }
     }
 
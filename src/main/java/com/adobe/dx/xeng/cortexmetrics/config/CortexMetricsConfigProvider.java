@@ -1,10 +1,20 @@
 package com.adobe.dx.xeng.cortexmetrics.config;
 
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.XmlFile;
 import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
 import hudson.util.Secret;
 import org.apache.commons.lang.StringUtils;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Provider of Cortex Metrics configuration options.
  * @author saville
@@ -31,6 +41,55 @@ public abstract class CortexMetricsConfigProvider {
      */
     public abstract String getNamespace(Item item);
 
+    /**
+     * Return the timeout in seconds for establishing a connection to Cortex.
+     * @return the connect timeout, or 0 if not configured
+     * @param item the current item
+     */
+    public int getConnectTimeout(Item item) {
+        return 0;
+    }
+
+    /**
+     * Return the timeout in seconds waiting for data from Cortex.
+     * @return the socket timeout, or 0 if not configured
+     * @param item the current item
+     */
+    public int getSocketTimeout(Item item) {
+        return 0;
+    }
+
+    /**
+     * Return the timeout in seconds waiting for a pooled connection to Cortex.
+     * @return the connection request timeout, or 0 if not configured
+     * @param item the current item
+     */
+    public int getConnectionRequestTimeout(Item item) {
+        return 0;
+    }
+
+    /**
+     * Return the total time in seconds a single write to Cortex may take.
+     * @return the write timeout, or 0 if not configured
+     * @param item the current item
+     */
+    public int getWriteTimeout(Item item) {
+        return 0;
+    }
+
+    /**
+     * Return every setting this provider configures for the item in a single pass. Settings not configured are left
+     * unset. Providers should override this if looking up settings one at a time repeats work, such as walking the
+     * folder hierarchy; the default implementation calls each getter.
+     * @return the settings configured by this provider
+     * @param item the current item
+     */
+    public CortexResolvedConfig resolve(Item item) {
+        return new CortexResolvedConfig(getUrl(item), getBearerToken(item), getNamespace(item),
+                getConnectTimeout(item), getSocketTimeout(item), getConnectionRequestTimeout(item),
+                getWriteTimeout(item));
+    }
+
     /**
      * Retrieves all Cortex metrics configuration providers.
      * @return the Cortex metrics config providers
@@ -40,21 +99,47 @@ public abstract class CortexMetricsConfigProvider {
     }
 
     /**
-     * Retrieves the first configured Cortex URL, either on a parent folder or in global configuration.
+     * Retrieves the configuration in effect for an item. The configuration is resolved once per folder and cached
+     * until the global configuration or a folder containing the item is saved, moved or deleted, so providers must
+     * only depend on the folder hierarchy of the item.
      * @param item the current item
-     * @return the configured Cortex URL
+     * @return the resolved configuration
      */
-    public static String getConfiguredUrl(Item item) {
+    public static CortexResolvedConfig getResolvedConfig(Item item) {
+        if (item == null) {
+            return resolveConfig(null);
+        }
+        ItemGroup<?> parent = item.getParent();
+        String folderName = parent instanceof Item ? ((Item) parent).getFullName() : "";
+        return ExtensionList.lookupSingleton(ResolvedConfigCache.class).cache.computeIfAbsent(folderName,
+                name -> resolveConfig(item));
+    }
+
+    /**
+     * Resolves every setting in one pass over the providers in provider order, each setting taken from the first
+     * provider that sets it. Stops as soon as every setting is set.
+     */
+    private static CortexResolvedConfig resolveConfig(Item item) {
+        CortexResolvedConfig resolved = CortexResolvedConfig.EMPTY;
         for (CortexMetricsConfigProvider provider : all()) {
             if (provider == null) {
                 continue;
             }
-            String url = provider.getUrl(item);
-            if (!StringUtils.isBlank(url)) {
-                return url;
+            resolved = resolved.withDefaults(provider.resolve(item));
+            if (resolved.isComplete()) {
+                break;
             }
         }
-        return null;
+        return resolved;
+    }
+
+    /**
+     * Retrieves the first configured Cortex URL, either on a parent folder or in global configuration.
+     * @param item the current item
+     * @return the configured Cortex URL
+     */
+    public static String getConfiguredUrl(Item item) {
+        return getResolvedConfig(item).getUrl();
     }
 
     /**
@@ -63,16 +148,7 @@ public abstract class CortexMetricsConfigProvider {
      * @return the configured bearer token
      */
     public static Secret getConfiguredBearerToken(Item item) {
-        for (CortexMetricsConfigProvider provider : all()) {
-            if (provider == null) {
-                continue;
-            }
-            Secret bearerToken = provider.getBearerToken(item);
-            if (bearerToken != null && !StringUtils.isBlank(bearerToken.getPlainText())) {
-                return bearerToken;
-            }
-        }
-        return null;
+        return getResolvedConfig(item).getBearerToken();
     }
 
     /**
@@ -81,15 +157,91 @@ public abstract class CortexMetricsConfigProvider {
      * @return the configured namespace
      */
     public static String getConfiguredNamespace(Item item) {
-        for (CortexMetricsConfigProvider provider : all()) {
-            if (provider == null) {
-                continue;
+        return getResolvedConfig(item).getNamespace();
+    }
+
+    /**
+     * Retrieves the first configured connect timeout, either on a parent folder or in global configuration.
+     * @param item the current item
+     * @return the configured connect timeout in seconds, or 0 if not configured
+     */
+    public static int getConfiguredConnectTimeout(Item item) {
+        return getResolvedConfig(item).getConnectTimeout();
+    }
+
+    /**
+     * Retrieves the first configured socket timeout, either on a parent folder or in global configuration.
+     * @param item the current item
+     * @return the configured socket timeout in seconds, or 0 if not configured
+     */
+    public static int getConfiguredSocketTimeout(Item item) {
+        return getResolvedConfig(item).getSocketTimeout();
+    }
+
+    /**
+     * Retrieves the first configured connection request timeout, either on a parent folder or in global
+     * configuration.
+     * @param item the current item
+     * @return the configured connection request timeout in seconds, or 0 if not configured
+     */
+    public static int getConfiguredConnectionRequestTimeout(Item item) {
+        return getResolvedConfig(item).getConnectionRequestTimeout();
+    }
+
+    /**
+     * Retrieves the first configured write timeout, either on a parent folder or in global configuration.
+     * @param item the current item
+     * @return the configured write timeout in seconds, or 0 if not configured
+     */
+    public static int getConfiguredWriteTimeout(Item item) {
+        return getResolvedConfig(item).getWriteTimeout();
+    }
+
+    /**
+     * Caches the resolved configuration per folder full name, the root being the empty name, and invalidates it when
+     * configuration is saved.
+     */
+    @Extension
+    public static final class ResolvedConfigCache extends SaveableListener {
+        private final Map<String, CortexResolvedConfig> cache = new ConcurrentHashMap<>();
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof CortexMetricsGlobalConfig) {
+                cache.clear();
+            } else if (o instanceof AbstractFolder) {
+                invalidate(((AbstractFolder<?>) o).getFullName());
             }
-            String namespace = provider.getNamespace(item);
-            if (!StringUtils.isBlank(namespace)) {
-                return namespace;
+        }
+
+        /**
+         * Removes the configuration of a folder and of all folders within it.
+         */
+        private void invalidate(String folderName) {
+            String prefix = folderName + "/";
+            cache.keySet().removeIf(name -> name.equals(folderName) || name.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Invalidates the cached configuration of folders that are moved, renamed or deleted.
+     */
+    @Extension
+    public static final class ResolvedConfigItemListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof ItemGroup) {
+                ResolvedConfigCache resolvedConfigCache = ExtensionList.lookupSingleton(ResolvedConfigCache.class);
+                resolvedConfigCache.invalidate(oldFullName);
+                resolvedConfigCache.invalidate(newFullName);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof ItemGroup) {
+                ExtensionList.lookupSingleton(ResolvedConfigCache.class).invalidate(item.getFullName());
             }
         }
-        return null;
     }
 }
@@ -12,6 +12,10 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Provides folder level configuration.
@@ -29,6 +33,22 @@ public class CortexMetricsFolderConfig extends AbstractFolderProperty<AbstractFo
      * The namespace to use.
      */
     private String namespace;
+    /**
+     * The connect timeout in seconds, 0 to inherit.
+     */
+    private int connectTimeout;
+    /**
+     * The socket timeout in seconds, 0 to inherit.
+     */
+    private int socketTimeout;
+    /**
+     * The connection request timeout in seconds, 0 to inherit.
+     */
+    private int connectionRequestTimeout;
+    /**
+     * The total write timeout in seconds, 0 to inherit.
+     */
+    private int writeTimeout;
 
     /**
      * Constructor.
@@ -87,6 +107,83 @@ public class CortexMetricsFolderConfig extends AbstractFolderProperty<AbstractFo
         this.namespace = namespace;
     }
 
+    /**
+     * Get the timeout in seconds for establishing a connection to Cortex.
+     * @return the connect timeout, or 0 to use the parent or global value
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds for establishing a connection to Cortex.
+     * @param connectTimeout the connect timeout, or 0 to use the parent or global value
+     */
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    /**
+     * Get the timeout in seconds waiting for data from Cortex.
+     * @return the socket timeout, or 0 to use the parent or global value
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds waiting for data from Cortex.
+     * @param socketTimeout the socket timeout, or 0 to use the parent or global value
+     */
+    @DataBoundSetter
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = Math.max(0, socketTimeout);
+    }
+
+    /**
+     * Get the timeout in seconds waiting for a pooled connection to Cortex.
+     * @return the connection request timeout, or 0 to use the parent or global value
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds waiting for a pooled connection to Cortex.
+     * @param connectionRequestTimeout the connection request timeout, or 0 to use the parent or global value
+     */
+    @DataBoundSetter
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = Math.max(0, connectionRequestTimeout);
+    }
+
+    /**
+     * Get the total time in seconds a single write to Cortex may take.
+     * @return the write timeout, or 0 to use the parent or global value
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Set the total time in seconds a single write to Cortex may take.
+     * @param writeTimeout the write timeout, or 0 to use the parent or global value
+     */
+    @DataBoundSetter
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = Math.max(0, writeTimeout);
+    }
+
+    /**
+     * Get the settings configured on this folder, leaving inherited settings unset.
+     * @return the folder settings
+     */
+    CortexResolvedConfig toResolvedConfig() {
+        return new CortexResolvedConfig(url, bearerToken, namespace, connectTimeout, socketTimeout,
+                connectionRequestTimeout, writeTimeout);
+    }
+
     /**
      * Descriptor class.
      */
@@ -107,8 +204,13 @@ public class CortexMetricsFolderConfig extends AbstractFolderProperty<AbstractFo
     @Extension(ordinal = 10000)
     public static class FolderCortexMetricsConfigProvider extends CortexMetricsConfigProvider {
 
-        @Override
-        public String getUrl(Item item) {
+        /**
+         * Walks up the folder hierarchy of the item, returning the folder configurations from the closest folder.
+         * @param item the current item
+         * @return the folder configurations
+         */
+        private static List<CortexMetricsFolderConfig> getFolderConfigs(Item item) {
+            List<CortexMetricsFolderConfig> configs = new ArrayList<>();
             if (item != null) {
                 ItemGroup parent = item.getParent();
                 while (parent != null) {
@@ -117,10 +219,7 @@ public class CortexMetricsFolderConfig extends AbstractFolderProperty<AbstractFo
                         CortexMetricsFolderConfig config = (CortexMetricsFolderConfig) folder.getProperties().get(
                                 CortexMetricsFolderConfig.class);
                         if (config != null) {
-                            String url = config.getUrl();
-                            if (!StringUtils.isBlank(url)) {
-                                return url;
-                            }
+                            configs.add(config);
                         }
                     }
 
@@ -131,61 +230,80 @@ public class CortexMetricsFolderConfig extends AbstractFolderProperty<AbstractFo
                     }
                 }
             }
+            return configs;
+        }
+
+        /**
+         * Walks up the folder hierarchy of the item, returning the first value set on a folder.
+         * @param item the current item
+         * @param getter retrieves the value from a folder configuration
+         * @param isSet whether a value counts as set
+         * @return the value from the closest folder, or null if no folder sets it
+         */
+        private static <T> T findInFolders(Item item, Function<CortexMetricsFolderConfig, T> getter,
+                                           Predicate<T> isSet) {
+            for (CortexMetricsFolderConfig config : getFolderConfigs(item)) {
+                T value = getter.apply(config);
+                if (value != null && isSet.test(value)) {
+                    return value;
+                }
+            }
             return null;
         }
 
         @Override
-        public Secret getBearerToken(Item item) {
-            if (item != null) {
-                ItemGroup parent = item.getParent();
-                while (parent != null) {
-                    if (parent instanceof AbstractFolder) {
-                        AbstractFolder folder = (AbstractFolder) parent;
-                        CortexMetricsFolderConfig config = (CortexMetricsFolderConfig) folder.getProperties().get(
-                                CortexMetricsFolderConfig.class);
-                        if (config != null) {
-                            Secret bearerToken = config.getBearerToken();
-                            if (bearerToken != null && !StringUtils.isBlank(bearerToken.getPlainText())) {
-                                return config.getBearerToken();
-                            }
-                        }
-                    }
-
-                    if (parent instanceof Item) {
-                        parent = ((Item) parent).getParent();
-                    } else {
-                        parent = null;
-                    }
+        public CortexResolvedConfig resolve(Item item) {
+            // Walk the hierarchy once for every setting, closer folders taking precedence
+            CortexResolvedConfig resolved = CortexResolvedConfig.EMPTY;
+            for (CortexMetricsFolderConfig config : getFolderConfigs(item)) {
+                resolved = resolved.withDefaults(config.toResolvedConfig());
+                if (resolved.isComplete()) {
+                    break;
                 }
             }
-            return null;
+            return resolved;
+        }
+
+        private static int findTimeoutInFolders(Item item, Function<CortexMetricsFolderConfig, Integer> getter) {
+            Integer timeout = findInFolders(item, getter, value -> value > 0);
+            return timeout == null ? 0 : timeout;
+        }
+
+        @Override
+        public String getUrl(Item item) {
+            return findInFolders(item, CortexMetricsFolderConfig::getUrl, url -> !StringUtils.isBlank(url));
+        }
+
+        @Override
+        public Secret getBearerToken(Item item) {
+            return findInFolders(item, CortexMetricsFolderConfig::getBearerToken,
+                    bearerToken -> !StringUtils.isBlank(bearerToken.getPlainText()));
         }
 
         @Override
         public String getNamespace(Item item) {
-            if (item != null) {
-                ItemGroup parent = item.getParent();
-                while (parent != null) {
-                    if (parent instanceof AbstractFolder) {
-                        AbstractFolder folder = (AbstractFolder) parent;
-                        CortexMetricsFolderConfig config = (CortexMetricsFolderConfig) folder.getProperties().get(
-                                CortexMetricsFolderConfig.class);
-                        if (config != null) {
-                            String namespace = config.getNamespace();
-                            if (!StringUtils.isBlank(namespace)) {
-                                return namespace;
-                            }
-                        }
-                    }
+            return findInFolders(item, CortexMetricsFolderConfig::getNamespace,
+                    namespace -> !StringUtils.isBlank(namespace));
+        }
 
-                    if (parent instanceof Item) {
-                        parent = ((Item) parent).getParent();
-                    } else {
-                        parent = null;
-                    }
-                }
-            }
-            return null;
+        @Override
+        public int getConnectTimeout(Item item) {
+            return findTimeoutInFolders(item, CortexMetricsFolderConfig::getConnectTimeout);
+        }
+
+        @Override
+        public int getSocketTimeout(Item item) {
+            return findTimeoutInFolders(item, CortexMetricsFolderConfig::getSocketTimeout);
+        }
+
+        @Override
+        public int getConnectionRequestTimeout(Item item) {
+            return findTimeoutInFolders(item, CortexMetricsFolderConfig::getConnectionRequestTimeout);
+        }
+
+        @Override
+        public int getWriteTimeout(Item item) {
+            return findTimeoutInFolders(item, CortexMetricsFolderConfig::getWriteTimeout);
         }
     }
 }
@@ -4,13 +4,19 @@ import com.google.inject.Inject;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.model.Item;
+import hudson.util.FormValidation;
 import hudson.util.Secret;
 import jenkins.model.GlobalConfiguration;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * Stores the global configuration options.
  * @since 0.1.0
@@ -18,6 +24,29 @@ import org.kohsuke.stapler.StaplerRequest;
 @Extension
 public class CortexMetricsGlobalConfig extends GlobalConfiguration {
     public static final String DEFAULT_NAMESPACE = "default";
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_SAMPLES_PER_SEND = 500;
+    public static final int DEFAULT_BATCH_SEND_DEADLINE = 5;
+    public static final int DEFAULT_MIN_SHARDS = 1;
+    public static final int DEFAULT_MAX_SHARDS = 4;
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_CONNECTION_IDLE_TIMEOUT = 30;
+    public static final int DEFAULT_CONNECTION_KEEP_ALIVE = 60;
+    public static final int DEFAULT_CONNECTION_TIME_TO_LIVE = 300;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 30;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 10;
+    public static final int DEFAULT_WRITE_TIMEOUT = 60;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_MIN_BACKOFF = 100;
+    public static final int DEFAULT_MAX_BACKOFF = 5000;
+    public static final String DEFAULT_DURATION_BUCKETS = "1, 5, 10, 30, 60, 120, 300, 600, 1800, 3600, 7200";
+    public static final int DEFAULT_AGGREGATION_INTERVAL = 60;
+    public static final int DEFAULT_LIVE_METRICS_INTERVAL = 60;
+    public static final int DEFAULT_CONTROLLER_METRICS_INTERVAL = 15;
+    public static final int DEFAULT_WRITE_AHEAD_LOG_MAX_SIZE = 256;
+    public static final CortexTimestampPolicy DEFAULT_TIMESTAMP_POLICY = CortexTimestampPolicy.PUBLISH_TIME;
 
     /**
      * The Cortex URL to push metrics.
@@ -31,6 +60,146 @@ public class CortexMetricsGlobalConfig extends GlobalConfiguration {
      * The namespace to use, defaults to "default".
      */
     private String namespace = DEFAULT_NAMESPACE;
+    /**
+     * Which moment samples are timestamped with.
+     */
+    private CortexTimestampPolicy timestampPolicy = DEFAULT_TIMESTAMP_POLICY;
+    /**
+     * Whether the duration and result of every Pipeline stage are published.
+     */
+    private boolean stageMetricsEnabled;
+    /**
+     * Whether the time runs spend in the build queue is tracked and published.
+     */
+    private boolean queueMetricsEnabled;
+    /**
+     * Whether test result counts and durations are published with the other run metrics.
+     */
+    private boolean testMetricsEnabled;
+    /**
+     * Whether the duration of every test suite is published as well.
+     */
+    private boolean testSuiteMetricsEnabled;
+    /**
+     * Whether metrics are published for runs while they are in progress.
+     */
+    private boolean liveMetricsEnabled;
+    /**
+     * The interval in seconds at which runs in progress are sampled.
+     */
+    private int liveMetricsInterval = DEFAULT_LIVE_METRICS_INTERVAL;
+    /**
+     * Whether gauges describing the controller are published.
+     */
+    private boolean controllerMetricsEnabled;
+    /**
+     * The interval in seconds at which controller gauges are collected.
+     */
+    private int controllerMetricsInterval = DEFAULT_CONTROLLER_METRICS_INTERVAL;
+    /**
+     * Whether metrics are published for every run, without configuring each job.
+     */
+    private boolean allRunsEnabled;
+    /**
+     * Regular expression of the full names of jobs to publish metrics for when publishing for every run.
+     */
+    private String includedJobs;
+    /**
+     * Regular expression of the full names of jobs not to publish metrics for when publishing for every run.
+     */
+    private String excludedJobs;
+    /**
+     * Whether run metrics are aggregated within Jenkins rather than sent for every run.
+     */
+    private boolean aggregationEnabled;
+    /**
+     * The upper bounds in seconds of the run duration histogram buckets, separated by commas.
+     */
+    private String durationBuckets = DEFAULT_DURATION_BUCKETS;
+    /**
+     * The interval in seconds at which aggregated metrics are sent.
+     */
+    private int aggregationInterval = DEFAULT_AGGREGATION_INTERVAL;
+    /**
+     * Whether to queue metrics and send them asynchronously in batches.
+     */
+    private boolean batchingEnabled;
+    /**
+     * Whether queued metrics are logged to disk until Cortex accepts them.
+     */
+    private boolean writeAheadLogEnabled;
+    /**
+     * The maximum size in megabytes of the write-ahead log on disk.
+     */
+    private int writeAheadLogMaxSize = DEFAULT_WRITE_AHEAD_LOG_MAX_SIZE;
+    /**
+     * The maximum number of series waiting to be sent.
+     */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    /**
+     * The maximum number of series sent in a single request.
+     */
+    private int maxSamplesPerSend = DEFAULT_MAX_SAMPLES_PER_SEND;
+    /**
+     * The maximum time in seconds series wait in a batch before being sent.
+     */
+    private int batchSendDeadline = DEFAULT_BATCH_SEND_DEADLINE;
+    /**
+     * The minimum number of parallel senders.
+     */
+    private int minShards = DEFAULT_MIN_SHARDS;
+    /**
+     * The maximum number of parallel senders.
+     */
+    private int maxShards = DEFAULT_MAX_SHARDS;
+    /**
+     * The maximum number of pooled connections to Cortex.
+     */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    /**
+     * The maximum number of pooled connections to a single Cortex host.
+     */
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    /**
+     * The time in seconds after which idle connections are closed.
+     */
+    private int connectionIdleTimeout = DEFAULT_CONNECTION_IDLE_TIMEOUT;
+    /**
+     * The maximum time in seconds a connection is kept alive between requests.
+     */
+    private int connectionKeepAlive = DEFAULT_CONNECTION_KEEP_ALIVE;
+    /**
+     * The maximum lifetime of a connection in seconds, 0 for no limit.
+     */
+    private int connectionTimeToLive = DEFAULT_CONNECTION_TIME_TO_LIVE;
+    /**
+     * The connect timeout in seconds.
+     */
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    /**
+     * The socket timeout in seconds.
+     */
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    /**
+     * The connection request timeout in seconds.
+     */
+    private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+    /**
+     * The total write timeout in seconds.
+     */
+    private int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    /**
+     * The maximum number of times a failed write is retried.
+     */
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    /**
+     * The initial retry backoff in milliseconds.
+     */
+    private int minBackoff = DEFAULT_MIN_BACKOFF;
+    /**
+     * The maximum retry backoff in milliseconds.
+     */
+    private int maxBackoff = DEFAULT_MAX_BACKOFF;
 
     /**
      * Constructor.
@@ -90,6 +259,687 @@ public class CortexMetricsGlobalConfig extends GlobalConfiguration {
         this.namespace = namespace;
     }
 
+    /**
+     * Get which moment the samples published for a run are timestamped with. All samples published together share the
+     * same timestamp, regardless of when they are actually sent.
+     * @return the timestamp policy
+     */
+    public CortexTimestampPolicy getTimestampPolicy() {
+        // May be missing from configuration saved by older versions
+        return timestampPolicy == null ? DEFAULT_TIMESTAMP_POLICY : timestampPolicy;
+    }
+
+    /**
+     * Set which moment the samples published for a run are timestamped with.
+     * @param timestampPolicy the timestamp policy
+     */
+    @DataBoundSetter
+    public void setTimestampPolicy(CortexTimestampPolicy timestampPolicy) {
+        this.timestampPolicy = timestampPolicy;
+    }
+
+    /**
+     * Whether the duration and result of every Pipeline stage are published as it completes, as the
+     * {@code _jenkins_job_stage_duration} series.
+     * @return true if stage metrics are published
+     */
+    public boolean isStageMetricsEnabled() {
+        return stageMetricsEnabled;
+    }
+
+    /**
+     * Set whether the duration and result of every Pipeline stage are published.
+     * @param stageMetricsEnabled true to publish stage metrics
+     */
+    @DataBoundSetter
+    public void setStageMetricsEnabled(boolean stageMetricsEnabled) {
+        this.stageMetricsEnabled = stageMetricsEnabled;
+    }
+
+    /**
+     * Whether the time runs spend in the build queue and on an executor is published with the other run metrics.
+     * Only runs queued while enabled have queue metrics.
+     * @return true if queue metrics are published
+     */
+    public boolean isQueueMetricsEnabled() {
+        return queueMetricsEnabled;
+    }
+
+    /**
+     * Set whether the time runs spend in the build queue and on an executor is published.
+     * @param queueMetricsEnabled true to publish queue metrics
+     */
+    @DataBoundSetter
+    public void setQueueMetricsEnabled(boolean queueMetricsEnabled) {
+        this.queueMetricsEnabled = queueMetricsEnabled;
+    }
+
+    /**
+     * Whether the test result counts and total test duration of runs are published with the other run metrics.
+     * @return true if test metrics are published
+     */
+    public boolean isTestMetricsEnabled() {
+        return testMetricsEnabled;
+    }
+
+    /**
+     * Set whether the test result counts and total test duration of runs are published.
+     * @param testMetricsEnabled true to publish test metrics
+     */
+    @DataBoundSetter
+    public void setTestMetricsEnabled(boolean testMetricsEnabled) {
+        this.testMetricsEnabled = testMetricsEnabled;
+    }
+
+    /**
+     * Whether the duration of every JUnit test suite is published too, when test metrics are enabled. This reads the
+     * stored test report of the run, one series is published per suite.
+     * @return true if test suite metrics are published
+     */
+    public boolean isTestSuiteMetricsEnabled() {
+        return testSuiteMetricsEnabled;
+    }
+
+    /**
+     * Set whether the duration of every JUnit test suite is published.
+     * @param testSuiteMetricsEnabled true to publish test suite metrics
+     */
+    @DataBoundSetter
+    public void setTestSuiteMetricsEnabled(boolean testSuiteMetricsEnabled) {
+        this.testSuiteMetricsEnabled = testSuiteMetricsEnabled;
+    }
+
+    /**
+     * Whether the elapsed time of every run in progress and a heartbeat are published periodically, as the
+     * {@code _jenkins_job_elapsed} and {@code _jenkins_job_heartbeat} series.
+     * @return true if live metrics are published
+     */
+    public boolean isLiveMetricsEnabled() {
+        return liveMetricsEnabled;
+    }
+
+    /**
+     * Set whether metrics are published periodically for runs in progress.
+     * @param liveMetricsEnabled true to publish live metrics
+     */
+    @DataBoundSetter
+    public void setLiveMetricsEnabled(boolean liveMetricsEnabled) {
+        this.liveMetricsEnabled = liveMetricsEnabled;
+    }
+
+    /**
+     * Get the interval in seconds at which runs in progress are sampled.
+     * @return the live metrics interval in seconds
+     */
+    public int getLiveMetricsInterval() {
+        return liveMetricsInterval;
+    }
+
+    /**
+     * Set the interval in seconds at which runs in progress are sampled.
+     * @param liveMetricsInterval the live metrics interval in seconds
+     */
+    @DataBoundSetter
+    public void setLiveMetricsInterval(int liveMetricsInterval) {
+        this.liveMetricsInterval = Math.max(1, liveMetricsInterval);
+    }
+
+    /**
+     * Whether gauges describing the whole controller, such as the queue length and busy executors, are published
+     * periodically to the globally configured endpoint.
+     * @return true if controller metrics are published
+     */
+    public boolean isControllerMetricsEnabled() {
+        return controllerMetricsEnabled;
+    }
+
+    /**
+     * Set whether gauges describing the whole controller are published periodically.
+     * @param controllerMetricsEnabled true to publish controller metrics
+     */
+    @DataBoundSetter
+    public void setControllerMetricsEnabled(boolean controllerMetricsEnabled) {
+        this.controllerMetricsEnabled = controllerMetricsEnabled;
+    }
+
+    /**
+     * Get the interval in seconds at which controller gauges are collected and sent.
+     * @return the controller metrics interval in seconds
+     */
+    public int getControllerMetricsInterval() {
+        return controllerMetricsInterval;
+    }
+
+    /**
+     * Set the interval in seconds at which controller gauges are collected and sent.
+     * @param controllerMetricsInterval the controller metrics interval in seconds
+     */
+    @DataBoundSetter
+    public void setControllerMetricsInterval(int controllerMetricsInterval) {
+        this.controllerMetricsInterval = Math.max(1, controllerMetricsInterval);
+    }
+
+    /**
+     * Whether metrics are published for every completed run, without adding the notifier or step to each job. Metrics
+     * for all runs are always queued, so series from runs completing close together are sent together.
+     * @return true if metrics are published for every run
+     */
+    public boolean isAllRunsEnabled() {
+        return allRunsEnabled;
+    }
+
+    /**
+     * Set whether metrics are published for every completed run.
+     * @param allRunsEnabled true to publish metrics for every run
+     */
+    @DataBoundSetter
+    public void setAllRunsEnabled(boolean allRunsEnabled) {
+        this.allRunsEnabled = allRunsEnabled;
+    }
+
+    /**
+     * Get the regular expression matching the full names of jobs to publish metrics for when publishing for every
+     * run, blank to include all jobs.
+     * @return the included jobs pattern
+     */
+    public String getIncludedJobs() {
+        return includedJobs;
+    }
+
+    /**
+     * Set the regular expression matching the full names of jobs to publish metrics for when publishing for every
+     * run.
+     * @param includedJobs the included jobs pattern
+     */
+    @DataBoundSetter
+    public void setIncludedJobs(String includedJobs) {
+        this.includedJobs = includedJobs;
+    }
+
+    /**
+     * Get the regular expression matching the full names of jobs not to publish metrics for when publishing for
+     * every run, blank to exclude no jobs.
+     * @return the excluded jobs pattern
+     */
+    public String getExcludedJobs() {
+        return excludedJobs;
+    }
+
+    /**
+     * Set the regular expression matching the full names of jobs not to publish metrics for when publishing for every
+     * run.
+     * @param excludedJobs the excluded jobs pattern
+     */
+    @DataBoundSetter
+    public void setExcludedJobs(String excludedJobs) {
+        this.excludedJobs = excludedJobs;
+    }
+
+    /**
+     * Validates the included jobs pattern.
+     * @param value the pattern
+     * @return the validation result
+     */
+    public FormValidation doCheckIncludedJobs(@QueryParameter String value) {
+        return checkPattern(value);
+    }
+
+    /**
+     * Validates the excluded jobs pattern.
+     * @param value the pattern
+     * @return the validation result
+     */
+    public FormValidation doCheckExcludedJobs(@QueryParameter String value) {
+        return checkPattern(value);
+    }
+
+    private static FormValidation checkPattern(String value) {
+        if (StringUtils.isBlank(value)) {
+            return FormValidation.ok();
+        }
+        try {
+            Pattern.compile(value);
+            return FormValidation.ok();
+        } catch (PatternSyntaxException e) {
+            return FormValidation.error("Invalid regular expression: " + e.getDescription());
+        }
+    }
+
+    /**
+     * Whether run metrics are aggregated within Jenkins and sent periodically rather than sent for every run. Run
+     * durations are then sent as a histogram per job and result.
+     * @return true if aggregation is enabled
+     */
+    public boolean isAggregationEnabled() {
+        return aggregationEnabled;
+    }
+
+    /**
+     * Set whether run metrics are aggregated within Jenkins and sent periodically.
+     * @param aggregationEnabled true to enable aggregation
+     */
+    @DataBoundSetter
+    public void setAggregationEnabled(boolean aggregationEnabled) {
+        this.aggregationEnabled = aggregationEnabled;
+    }
+
+    /**
+     * Get the upper bounds in seconds of the run duration histogram buckets, separated by commas. A +Inf bucket is
+     * always added.
+     * @return the duration buckets
+     */
+    public String getDurationBuckets() {
+        return StringUtils.isBlank(durationBuckets) ? DEFAULT_DURATION_BUCKETS : durationBuckets;
+    }
+
+    /**
+     * Set the upper bounds in seconds of the run duration histogram buckets, separated by commas.
+     * @param durationBuckets the duration buckets
+     */
+    @DataBoundSetter
+    public void setDurationBuckets(String durationBuckets) {
+        this.durationBuckets = durationBuckets;
+    }
+
+    /**
+     * Validates the duration buckets.
+     * @param value the duration buckets
+     * @return the validation result
+     */
+    public FormValidation doCheckDurationBuckets(@QueryParameter String value) {
+        if (StringUtils.isBlank(value)) {
+            return FormValidation.ok();
+        }
+        try {
+            parseBuckets(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Parses histogram bucket bounds separated by commas.
+     * @param buckets the bucket bounds
+     * @return the distinct bounds in ascending order
+     * @throws IllegalArgumentException if a bound is not a finite number
+     */
+    public static double[] parseBuckets(String buckets) {
+        String[] values = StringUtils.split(buckets, ", ");
+        double[] bounds = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                bounds[i] = Double.parseDouble(values[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid bucket " + values[i], e);
+            }
+            if (Double.isNaN(bounds[i]) || Double.isInfinite(bounds[i])) {
+                throw new IllegalArgumentException("Invalid bucket " + values[i]);
+            }
+        }
+        return Arrays.stream(bounds).sorted().distinct().toArray();
+    }
+
+    /**
+     * Get the interval in seconds at which aggregated metrics are sent to Cortex.
+     * @return the aggregation interval in seconds
+     */
+    public int getAggregationInterval() {
+        return aggregationInterval;
+    }
+
+    /**
+     * Set the interval in seconds at which aggregated metrics are sent to Cortex.
+     * @param aggregationInterval the aggregation interval in seconds
+     */
+    @DataBoundSetter
+    public void setAggregationInterval(int aggregationInterval) {
+        this.aggregationInterval = Math.max(1, aggregationInterval);
+    }
+
+    /**
+     * Whether metrics are queued and sent asynchronously in batches rather than sent directly by each run.
+     * @return true if batching is enabled
+     */
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    /**
+     * Set whether metrics are queued and sent asynchronously in batches.
+     * @param batchingEnabled true to enable batching
+     */
+    @DataBoundSetter
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+
+    /**
+     * Whether queued metrics are stored in a write-ahead log on disk until Cortex accepts them, so they are sent
+     * after a restart if Cortex could not be reached. Only read when the write queue starts.
+     * @return true if the write-ahead log is enabled
+     */
+    public boolean isWriteAheadLogEnabled() {
+        return writeAheadLogEnabled;
+    }
+
+    /**
+     * Set whether queued metrics are stored in a write-ahead log on disk until Cortex accepts them.
+     * @param writeAheadLogEnabled true to enable the write-ahead log
+     */
+    @DataBoundSetter
+    public void setWriteAheadLogEnabled(boolean writeAheadLogEnabled) {
+        this.writeAheadLogEnabled = writeAheadLogEnabled;
+    }
+
+    /**
+     * Get the maximum size in megabytes of the write-ahead log on disk. Series queued while the log is full are only
+     * kept in memory. Only read when the write queue starts.
+     * @return the maximum size
+     */
+    public int getWriteAheadLogMaxSize() {
+        return writeAheadLogMaxSize;
+    }
+
+    /**
+     * Set the maximum size in megabytes of the write-ahead log on disk.
+     * @param writeAheadLogMaxSize the maximum size
+     */
+    @DataBoundSetter
+    public void setWriteAheadLogMaxSize(int writeAheadLogMaxSize) {
+        this.writeAheadLogMaxSize = Math.max(1, writeAheadLogMaxSize);
+    }
+
+    /**
+     * Get the maximum number of series waiting to be sent, further series are dropped.
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Set the maximum number of series waiting to be sent.
+     * @param queueCapacity the queue capacity
+     */
+    @DataBoundSetter
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Get the maximum number of series sent in a single request.
+     * @return the maximum series per request
+     */
+    public int getMaxSamplesPerSend() {
+        return maxSamplesPerSend;
+    }
+
+    /**
+     * Set the maximum number of series sent in a single request.
+     * @param maxSamplesPerSend the maximum series per request
+     */
+    @DataBoundSetter
+    public void setMaxSamplesPerSend(int maxSamplesPerSend) {
+        this.maxSamplesPerSend = Math.max(1, maxSamplesPerSend);
+    }
+
+    /**
+     * Get the maximum time in seconds a series waits to be batched with others before being sent.
+     * @return the batch send deadline in seconds
+     */
+    public int getBatchSendDeadline() {
+        return batchSendDeadline;
+    }
+
+    /**
+     * Set the maximum time in seconds a series waits to be batched with others before being sent.
+     * @param batchSendDeadline the batch send deadline in seconds
+     */
+    @DataBoundSetter
+    public void setBatchSendDeadline(int batchSendDeadline) {
+        this.batchSendDeadline = Math.max(1, batchSendDeadline);
+    }
+
+    /**
+     * Get the minimum number of parallel senders used when batching.
+     * @return the minimum number of shards
+     */
+    public int getMinShards() {
+        return minShards;
+    }
+
+    /**
+     * Set the minimum number of parallel senders used when batching.
+     * @param minShards the minimum number of shards
+     */
+    @DataBoundSetter
+    public void setMinShards(int minShards) {
+        this.minShards = Math.max(1, minShards);
+    }
+
+    /**
+     * Get the maximum number of parallel senders used when batching, never less than the minimum.
+     * @return the maximum number of shards
+     */
+    public int getMaxShards() {
+        return Math.max(minShards, maxShards);
+    }
+
+    /**
+     * Set the maximum number of parallel senders used when batching.
+     * @param maxShards the maximum number of shards
+     */
+    @DataBoundSetter
+    public void setMaxShards(int maxShards) {
+        this.maxShards = Math.max(1, maxShards);
+    }
+
+    /**
+     * Get the maximum number of pooled connections to Cortex.
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of pooled connections to Cortex.
+     * @param maxConnections the maximum number of connections
+     */
+    @DataBoundSetter
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Get the maximum number of pooled connections to a single Cortex host.
+     * @return the maximum number of connections per host
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Set the maximum number of pooled connections to a single Cortex host.
+     * @param maxConnectionsPerRoute the maximum number of connections per host
+     */
+    @DataBoundSetter
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = Math.max(1, maxConnectionsPerRoute);
+    }
+
+    /**
+     * Get the time in seconds after which idle pooled connections are closed.
+     * @return the idle timeout in seconds
+     */
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * Set the time in seconds after which idle pooled connections are closed.
+     * @param connectionIdleTimeout the idle timeout in seconds
+     */
+    @DataBoundSetter
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = Math.max(1, connectionIdleTimeout);
+    }
+
+    /**
+     * Get the maximum time in seconds a connection is kept alive between requests.
+     * @return the keep-alive time in seconds
+     */
+    public int getConnectionKeepAlive() {
+        return connectionKeepAlive;
+    }
+
+    /**
+     * Set the maximum time in seconds a connection is kept alive between requests.
+     * @param connectionKeepAlive the keep-alive time in seconds
+     */
+    @DataBoundSetter
+    public void setConnectionKeepAlive(int connectionKeepAlive) {
+        this.connectionKeepAlive = Math.max(1, connectionKeepAlive);
+    }
+
+    /**
+     * Get the maximum lifetime of a pooled connection in seconds, 0 if connections may be reused indefinitely.
+     * @return the connection time to live in seconds
+     */
+    public int getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
+
+    /**
+     * Set the maximum lifetime of a pooled connection in seconds.
+     * @param connectionTimeToLive the connection time to live in seconds, 0 for no limit
+     */
+    @DataBoundSetter
+    public void setConnectionTimeToLive(int connectionTimeToLive) {
+        this.connectionTimeToLive = Math.max(0, connectionTimeToLive);
+    }
+
+    /**
+     * Get the timeout in seconds for establishing a connection to Cortex.
+     * @return the connect timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds for establishing a connection to Cortex.
+     * @param connectTimeout the connect timeout
+     */
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(1, connectTimeout);
+    }
+
+    /**
+     * Get the timeout in seconds waiting for data from Cortex.
+     * @return the socket timeout
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds waiting for data from Cortex.
+     * @param socketTimeout the socket timeout
+     */
+    @DataBoundSetter
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = Math.max(1, socketTimeout);
+    }
+
+    /**
+     * Get the timeout in seconds waiting for a pooled connection to Cortex.
+     * @return the connection request timeout
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Set the timeout in seconds waiting for a pooled connection to Cortex.
+     * @param connectionRequestTimeout the connection request timeout
+     */
+    @DataBoundSetter
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = Math.max(1, connectionRequestTimeout);
+    }
+
+    /**
+     * Get the total time in seconds a single write to Cortex may take, after which it is aborted.
+     * @return the write timeout
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Set the total time in seconds a single write to Cortex may take.
+     * @param writeTimeout the write timeout
+     */
+    @DataBoundSetter
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = Math.max(1, writeTimeout);
+    }
+
+    /**
+     * Get the maximum number of times a write rejected with a 5xx or 429 status, or that failed to reach Cortex, is
+     * retried.
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the maximum number of times a failed write is retried.
+     * @param maxRetries the maximum number of retries
+     */
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Get the initial backoff in milliseconds before retrying a failed write, doubled on every retry.
+     * @return the minimum backoff in milliseconds
+     */
+    public int getMinBackoff() {
+        return minBackoff;
+    }
+
+    /**
+     * Set the initial backoff in milliseconds before retrying a failed write.
+     * @param minBackoff the minimum backoff in milliseconds
+     */
+    @DataBoundSetter
+    public void setMinBackoff(int minBackoff) {
+        this.minBackoff = Math.max(1, minBackoff);
+    }
+
+    /**
+     * Get the maximum backoff in milliseconds before retrying a failed write, never less than the minimum.
+     * @return the maximum backoff in milliseconds
+     */
+    public int getMaxBackoff() {
+        return Math.max(minBackoff, maxBackoff);
+    }
+
+    /**
+     * Set the maximum backoff in milliseconds before retrying a failed write.
+     * @param maxBackoff the maximum backoff in milliseconds
+     */
+    @DataBoundSetter
+    public void setMaxBackoff(int maxBackoff) {
+        this.maxBackoff = Math.max(1, maxBackoff);
+    }
+
     /**
      * Retrieve the global configuration instance.
      * @return the global configuration
@@ -118,6 +968,13 @@ public class CortexMetricsGlobalConfig extends GlobalConfiguration {
         @Inject
         private CortexMetricsGlobalConfig config;
 
+        @Override
+        public CortexResolvedConfig resolve(Item item) {
+            return new CortexResolvedConfig(getUrl(item), config.getBearerToken(), config.getNamespace(),
+                    config.getConnectTimeout(), config.getSocketTimeout(), config.getConnectionRequestTimeout(),
+                    config.getWriteTimeout());
+        }
+
         @Override
         public String getUrl(Item item) {
             String url = config.getUrl();
@@ -136,5 +993,25 @@ public class CortexMetricsGlobalConfig extends GlobalConfiguration {
         public String getNamespace(Item item) {
             return config.getNamespace();
         }
+
+        @Override
+        public int getConnectTimeout(Item item) {
+            return config.getConnectTimeout();
+        }
+
+        @Override
+        public int getSocketTimeout(Item item) {
+            return config.getSocketTimeout();
+        }
+
+        @Override
+        public int getConnectionRequestTimeout(Item item) {
+            return config.getConnectionRequestTimeout();
+        }
+
+        @Override
+        public int getWriteTimeout(Item item) {
+            return config.getWriteTimeout();
+        }
     }
 }
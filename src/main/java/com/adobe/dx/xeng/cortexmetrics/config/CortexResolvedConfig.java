@@ -0,0 +1,138 @@
+package com.adobe.dx.xeng.cortexmetrics.config;
+
+import hudson.util.Secret;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Cortex configuration settings, either the part set by a single provider or the configuration in effect for the
+ * items of a folder, combining every provider. Instances are immutable so they can be shared between runs until the
+ * configuration changes.
+ * @author saville
+ */
+public final class CortexResolvedConfig {
+    /**
+     * Configuration with no settings.
+     */
+    public static final CortexResolvedConfig EMPTY = new CortexResolvedConfig(null, null, null, 0, 0, 0, 0);
+
+    private final String url;
+    private final Secret bearerToken;
+    private final String namespace;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int connectionRequestTimeout;
+    private final int writeTimeout;
+
+    /**
+     * Constructor.
+     * @param url the Cortex write URL, or null if not configured
+     * @param bearerToken the bearer token, or null if not configured
+     * @param namespace the namespace, or null if not configured
+     * @param connectTimeout the connect timeout in seconds, or 0 if not configured
+     * @param socketTimeout the socket timeout in seconds, or 0 if not configured
+     * @param connectionRequestTimeout the connection request timeout in seconds, or 0 if not configured
+     * @param writeTimeout the write timeout in seconds, or 0 if not configured
+     */
+    public CortexResolvedConfig(String url, Secret bearerToken, String namespace, int connectTimeout,
+                                int socketTimeout, int connectionRequestTimeout, int writeTimeout) {
+        this.url = url;
+        this.bearerToken = bearerToken;
+        this.namespace = namespace;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Combines this configuration with another, using the settings of the other one only where they are not set here.
+     * @param defaults the configuration to use for settings not set here
+     * @return the combined configuration
+     */
+    public CortexResolvedConfig withDefaults(CortexResolvedConfig defaults) {
+        if (defaults == null || defaults == EMPTY || isComplete()) {
+            return this;
+        }
+        return new CortexResolvedConfig(
+                isSet(url) ? url : defaults.url,
+                isTokenSet(bearerToken) ? bearerToken : defaults.bearerToken,
+                isSet(namespace) ? namespace : defaults.namespace,
+                connectTimeout > 0 ? connectTimeout : defaults.connectTimeout,
+                socketTimeout > 0 ? socketTimeout : defaults.socketTimeout,
+                connectionRequestTimeout > 0 ? connectionRequestTimeout : defaults.connectionRequestTimeout,
+                writeTimeout > 0 ? writeTimeout : defaults.writeTimeout);
+    }
+
+    /**
+     * Whether every setting is set, so no other configuration needs to be consulted.
+     * @return true if complete
+     */
+    public boolean isComplete() {
+        return isSet(url) && isTokenSet(bearerToken) && isSet(namespace) && connectTimeout > 0 && socketTimeout > 0
+                && connectionRequestTimeout > 0 && writeTimeout > 0;
+    }
+
+    private static boolean isSet(String value) {
+        return !StringUtils.isBlank(value);
+    }
+
+    private static boolean isTokenSet(Secret value) {
+        return value != null && !StringUtils.isBlank(value.getPlainText());
+    }
+
+    /**
+     * Get the Cortex write URL.
+     * @return the URL, or null if not configured
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the bearer token used to authenticate to Cortex.
+     * @return the bearer token, or null if not configured
+     */
+    public Secret getBearerToken() {
+        return bearerToken;
+    }
+
+    /**
+     * Get the namespace for metric names.
+     * @return the namespace, or null if not configured
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Get the timeout in seconds for establishing a connection to Cortex.
+     * @return the connect timeout, or 0 if not configured
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Get the timeout in seconds waiting for data from Cortex.
+     * @return the socket timeout, or 0 if not configured
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Get the timeout in seconds waiting for a pooled connection to Cortex.
+     * @return the connection request timeout, or 0 if not configured
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Get the total time in seconds a single write to Cortex may take.
+     * @return the write timeout, or 0 if not configured
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+}
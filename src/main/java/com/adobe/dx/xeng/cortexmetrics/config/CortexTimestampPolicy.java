@@ -0,0 +1,34 @@
+package com.adobe.dx.xeng.cortexmetrics.config;
+
+/**
+ * Which moment the samples published for a run are timestamped with.
+ * @author saville
+ */
+public enum CortexTimestampPolicy {
+    /**
+     * When the metrics are published.
+     */
+    PUBLISH_TIME("When metrics are published"),
+    /**
+     * When the run started.
+     */
+    RUN_START("When the run started"),
+    /**
+     * When the run finished, or the publish time for runs still in progress.
+     */
+    RUN_END("When the run finished");
+
+    private final String displayName;
+
+    CortexTimestampPolicy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    /**
+     * Get the name shown in the configuration form.
+     * @return the display name
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,215 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.model.FreeStyleProject
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+
+class CortexAggregatorSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "aggregate run durations into a histogram"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setAggregationEnabled(true)
+        globalConfig.setAggregationInterval(3600)
+        globalConfig.setDurationBuckets("60, 0.5")
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+        jenkinsRule.buildAndAssertSuccess(project)
+        CortexAggregator.get().flush()
+
+        then:
+        def series = writeRequests.collectMany { it.timeseriesList }
+        def names = series.collect { it.labelsList.find { it.name == "__name__" }.value }
+        // No raw samples are sent for the runs
+        !names.contains("gc-ns_jenkins_job_duration")
+        !names.contains("gc-ns_jenkins_job_count")
+        def histogram = series.findAll { it.labelsList.any { it.value.startsWith("gc-ns_jenkins_job_duration_") } }
+        histogram.size() == 5
+        def buckets = histogram.findAll { it.labelsList.any { it.value == "gc-ns_jenkins_job_duration_bucket" } }
+        buckets.collect { it.labelsList.find { it.name == "le" }.value } == ["0.5", "60", "+Inf"]
+        buckets[2].samplesList[0].value == 2d
+        histogram.find { it.labelsList.any { it.value == "gc-ns_jenkins_job_duration_count" } }.samplesList[0].value == 2d
+        histogram.every { it.labelsList.any { it.name == "job_name" && it.value == "job1" } }
+    }
+
+    def "keep counting runs across restarts"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setAggregationEnabled(true)
+        globalConfig.setAggregationInterval(3600)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(project)
+        // Saves the counters as Jenkins would when restarting
+        new CortexAggregator.ShutdownListener().onBeforeShutdown()
+        jenkinsRule.buildAndAssertSuccess(project)
+        writeRequests.clear()
+        CortexAggregator.get().flush()
+
+        then:
+        jenkinsRule.assertLogContains("Aggregated metrics for sending to Cortex", build)
+        def counter = writeRequests.collectMany { it.timeseriesList }.find {
+            it.labelsList.any { it.name == "__name__" && it.value == "gc-ns_jenkins_job_runs_total" }
+        }
+        counter.samplesList[0].value == 2d
+    }
+
+    def "keep aggregating into the same series when the endpoint timeouts change"() {
+        given:
+        CortexMetricsGlobalConfig.get().setAggregationInterval(3600)
+        def token = Secret.fromString("gc-token")
+        def labels = CortexLabels.of(["job_name": "job1"])
+        def aggregator = CortexAggregator.get()
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        def writeTimeouts = new CopyOnWriteArrayList<Integer>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            writeTimeouts.add(post.config.connectTimeout)
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        aggregator.increment(new CortexEndpoint("http://gc-url/", token, 1, 10, 10, 10), "runs_total", labels, 1)
+        aggregator.increment(new CortexEndpoint("http://gc-url/", token, 2, 10, 10, 10), "runs_total", labels, 1)
+        aggregator.flush()
+
+        then:
+        writeRequests.size() == 1
+        writeRequests[0].timeseriesCount == 1
+        writeRequests[0].getTimeseries(0).getSamples(0).value == 2d
+        writeTimeouts == [2000]
+    }
+
+    def "drop series that were not updated for too long"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setAggregationInterval(60)
+        def endpoint = new CortexEndpoint("http://gc-url/", Secret.fromString("gc-token"))
+        def aggregator = CortexAggregator.get()
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        aggregator.increment(endpoint, "runs_total", CortexLabels.of(["job_name": "job1"]), 1)
+        aggregator.flush(System.currentTimeMillis() + 61000L * CortexAggregator.EXPIRE_AFTER_INTERVALS)
+
+        then: "the series is written a last time"
+        writeRequests.size() == 1
+
+        when:
+        writeRequests.clear()
+        aggregator.flush()
+
+        then:
+        writeRequests.isEmpty()
+    }
+
+    def "drop the series of deleted jobs"() {
+        given:
+        def endpoint = new CortexEndpoint("http://gc-url/", Secret.fromString("gc-token"))
+        def aggregator = CortexAggregator.get()
+        def folder = jenkinsRule.createFolder("folder1")
+        def job = folder.createProject(FreeStyleProject.class, "job1")
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        aggregator.increment(endpoint, "runs_total", CortexLabels.of(["job_name": "folder1/job1"]), 1)
+        aggregator.increment(endpoint, "runs_total", CortexLabels.of(["job_name": "folder10/job1"]), 1)
+        aggregator.observe(endpoint, "duration", CortexLabels.of(["job_name": "folder1/job1"]), 1)
+        job.delete()
+        aggregator.flush()
+
+        then:
+        def jobNames = writeRequests.collectMany { it.timeseriesList }.collect { series ->
+            series.labelsList.find { it.name == "job_name" }.value
+        }
+        jobNames == ["folder10/job1"]
+    }
+}
@@ -0,0 +1,65 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import spock.lang.Specification
+
+class CortexBufferPoolSpec extends Specification {
+    def setup() {
+        // The pool is shared, so start from an empty one
+        while (CortexBufferPool.size() > 0) {
+            CortexBufferPool.acquire(1)
+        }
+    }
+
+    def "reuse a released buffer that is large enough"() {
+        given:
+        def buffer = CortexBufferPool.acquire(1000)
+        buffer.put(1 as byte)
+        CortexBufferPool.release(buffer)
+
+        when:
+        def reused = CortexBufferPool.acquire(500)
+
+        then:
+        reused.is(buffer)
+        reused.position() == 0
+        reused.remaining() == buffer.capacity()
+        CortexBufferPool.size() == 0
+    }
+
+    def "allocate a larger buffer when the pooled one is too small"() {
+        given:
+        def buffer = CortexBufferPool.acquire(1000)
+        CortexBufferPool.release(buffer)
+
+        when:
+        def larger = CortexBufferPool.acquire(buffer.capacity() + 1)
+
+        then:
+        !larger.is(buffer)
+        larger.capacity() > buffer.capacity()
+        larger.isDirect()
+    }
+
+    def "discard released buffers larger than the maximum pooled capacity"() {
+        given:
+        def buffer = CortexBufferPool.acquire(CortexBufferPool.MAX_POOLED_CAPACITY + 1)
+
+        when:
+        CortexBufferPool.release(buffer)
+
+        then:
+        CortexBufferPool.size() == 0
+        !CortexBufferPool.acquire(CortexBufferPool.MAX_POOLED_CAPACITY + 1).is(buffer)
+    }
+
+    def "keep at most the maximum number of idle buffers"() {
+        given:
+        def buffers = (1..CortexBufferPool.MAX_POOLED + 4).collect { CortexBufferPool.acquire(1) }
+
+        when:
+        buffers.each { CortexBufferPool.release(it) }
+
+        then:
+        CortexBufferPool.size() == CortexBufferPool.MAX_POOLED
+    }
+}
@@ -0,0 +1,31 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import hudson.model.labels.LabelAtom
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import spock.lang.Specification
+
+class CortexControllerCollectorSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "collect queue, executor and node gauges"() {
+        given:
+        def agent = jenkinsRule.createOnlineSlave(new LabelAtom("linux"))
+
+        when:
+        def timeSeriesList = CortexControllerCollector.createTimeSeries("gc-ns", 1000L)
+        def gauges = timeSeriesList.collectEntries { ts ->
+            def labels = (0..<ts.labels.size()).collectEntries { [(ts.labels.getName(it)): ts.labels.getValue(it)] }
+            [([labels["__name__"], labels["label"] ?: labels["state"]]): ts.value]
+        }
+
+        then:
+        gauges[["gc-ns_jenkins_queue_length", null]] == 0d
+        gauges[["gc-ns_jenkins_nodes", "online"]] == 2d
+        gauges[["gc-ns_jenkins_nodes", "offline"]] == 0d
+        gauges[["gc-ns_jenkins_label_executors_idle", "linux"]] == 1d
+        // Node names are not used as labels
+        !gauges.containsKey(["gc-ns_jenkins_label_executors_idle", agent.nodeName])
+        timeSeriesList.every { it.timestamp == 1000L }
+    }
+}
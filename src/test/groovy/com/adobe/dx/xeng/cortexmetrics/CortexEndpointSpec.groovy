@@ -0,0 +1,71 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import hudson.util.Secret
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import spock.lang.Specification
+
+class CortexEndpointSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "build the Authorization header from the bearer token"() {
+        expect:
+        new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token")).authorization == "Bearer token"
+        new CortexEndpoint("http://cortex/api/prom/push", null).authorization == null
+    }
+
+    def "only store the bearer token encrypted, encrypting it once"() {
+        given:
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("secret-token"), 1, 2, 3, 4)
+
+        when:
+        def first = serialize(endpoint)
+        def second = serialize(endpoint)
+
+        then: "encrypting again would produce a different value"
+        first == second
+        !new String(first, "UTF-8").contains("secret-token")
+    }
+
+    def "keep the encrypted bearer token when read back"() {
+        given:
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"), 1, 2, 3, 4)
+        def bytes = serialize(endpoint)
+
+        when:
+        def read = deserialize(bytes)
+        def readAgain = deserialize(bytes)
+
+        then:
+        read == endpoint
+        read.bearerToken.plainText == "token"
+        read.authorization == "Bearer token"
+        read.connectTimeout == 1
+        read.writeTimeout == 4
+        serialize(read) == bytes
+        read.bearerToken.is(readAgain.bearerToken)
+    }
+
+    def "read back an endpoint without a bearer token"() {
+        given:
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", null)
+
+        when:
+        def read = deserialize(serialize(endpoint))
+
+        then:
+        read == endpoint
+        read.bearerToken == null
+        read.authorization == null
+    }
+
+    private static byte[] serialize(CortexEndpoint endpoint) {
+        def bytes = new ByteArrayOutputStream()
+        endpoint.serialize(new DataOutputStream(bytes))
+        return bytes.toByteArray()
+    }
+
+    private static CortexEndpoint deserialize(byte[] bytes) {
+        return CortexEndpoint.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)))
+    }
+}
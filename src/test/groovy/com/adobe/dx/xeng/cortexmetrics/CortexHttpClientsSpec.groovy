@@ -0,0 +1,45 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import hudson.util.Secret
+import org.apache.http.client.HttpClient
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import spock.lang.Specification
+
+import java.util.function.Function
+
+class CortexHttpClientsSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "share a client between urls on the same host and tenant"() {
+        given:
+        def endpoint1 = new CortexEndpoint("http://cortex-1/api/prom/push", Secret.fromString("tenant-1"))
+        def endpoint2 = new CortexEndpoint("http://cortex-1/other/push", Secret.fromString("tenant-1"))
+        def endpoint3 = new CortexEndpoint("http://cortex-1/api/prom/push", Secret.fromString("tenant-2"))
+        def endpoint4 = new CortexEndpoint("http://cortex-2/api/prom/push", Secret.fromString("tenant-1"))
+
+        and:
+        CortexHttpClients.setClientFactory({ Mock(HttpClient) } as Function)
+
+        expect:
+        CortexHttpClients.get(endpoint1).is(CortexHttpClients.get(endpoint2))
+        !CortexHttpClients.get(endpoint1).is(CortexHttpClients.get(endpoint3))
+        !CortexHttpClients.get(endpoint1).is(CortexHttpClients.get(endpoint4))
+    }
+
+    def "rebuild the clients when the global config is saved"() {
+        given:
+        def endpoint = new CortexEndpoint("http://cortex-1/api/prom/push", Secret.fromString("tenant-1"))
+        CortexHttpClients.setClientFactory({ Mock(HttpClient) } as Function)
+        def client = CortexHttpClients.get(endpoint)
+
+        when:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setMaxConnectionsPerRoute(5)
+        globalConfig.save()
+
+        then:
+        !CortexHttpClients.get(endpoint).is(client)
+    }
+}
@@ -0,0 +1,108 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import spock.lang.Specification
+
+class CortexLabelsSpec extends Specification {
+    def "sort labels by name"() {
+        when:
+        def labels = CortexLabels.of(["job_result": "SUCCESS", "__name__": "count", "job_name": "job1", "Upper": "u"])
+                .with("l1", "v1")
+
+        then:
+        (0..<labels.size()).collect { labels.getName(it) } == ["Upper", "__name__", "job_name", "job_result", "l1"]
+        (0..<labels.size()).collect { labels.getValue(it) } == ["u", "count", "job1", "SUCCESS", "v1"]
+    }
+
+    def "compare labels independently of the order they were added"() {
+        given:
+        def labels1 = CortexLabels.of(["a", "b", "c"] as String[], ["1", "2", "3"] as String[])
+        def labels2 = CortexLabels.of(["c", "a"] as String[], ["3", "1"] as String[]).with("b", "2")
+
+        expect:
+        labels1 == labels2
+        labels1.hashCode() == labels2.hashCode()
+        labels1 != labels2.with("b", "other")
+        labels1.with("b", "2").is(labels1)
+    }
+
+    def "reject duplicate label names"() {
+        when:
+        CortexLabels.of(["a", "a"] as String[], ["1", "2"] as String[])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "reuse the cached labels for the same job and labels in any order"() {
+        given:
+        def labels = ["job_name": "folder1/job1", "job_result": "SUCCESS"]
+        def cached = CortexLabels.forSeries("folder1/job1", "ns_jenkins_job_count", labels)
+
+        expect:
+        cached == CortexLabels.of(labels + ["__name__": "ns_jenkins_job_count"])
+        CortexLabels.forSeries("folder1/job1", "ns_jenkins_job_count",
+                ["job_result": "SUCCESS", "job_name": "folder1/job1"]).is(cached)
+        !CortexLabels.forSeries("folder1/job2", "ns_jenkins_job_count", labels).is(cached)
+        !CortexLabels.forSeries("folder1/job1", "ns_jenkins_job_duration", labels).is(cached)
+        !CortexLabels.forSeries("folder1/job1", "ns_jenkins_job_count", labels + ["job_result": "FAILURE"])
+                .is(cached)
+    }
+
+    def "not change the cached labels when the given labels change"() {
+        given:
+        def labels = ["job_name": "job1"]
+        def cached = CortexLabels.forSeries("job1", "count", labels)
+
+        when:
+        labels.put("job_name", "other")
+
+        then:
+        !CortexLabels.forSeries("job1", "count", labels).is(cached)
+        CortexLabels.forSeries("job1", "count", ["job_name": "job1"]).is(cached)
+    }
+
+    def "evict the least recently used labels of a job once it has too many"() {
+        given:
+        def hot = CortexLabels.forSeries("lru-job", "hot", [:])
+        def cold = CortexLabels.forSeries("lru-job", "cold", [:])
+
+        when:
+        CortexLabels.MAX_CACHED_PER_JOB.times {
+            CortexLabels.forSeries("lru-job", "hot", [:])
+            CortexLabels.forSeries("lru-job", "count$it", [:])
+        }
+
+        then:
+        CortexLabels.forSeries("lru-job", "hot", [:]).is(hot)
+        !CortexLabels.forSeries("lru-job", "cold", [:]).is(cold)
+    }
+
+    def "evict the labels of the least recently used jobs once there are too many"() {
+        given:
+        def hot = CortexLabels.forSeries("lru-hot", "count", [:])
+        def cold = CortexLabels.forSeries("lru-cold", "count", [:])
+
+        when:
+        CortexLabels.MAX_CACHED_JOBS.times {
+            CortexLabels.forSeries("lru-hot", "count", [:])
+            CortexLabels.forSeries("lru-job$it", "count", [:])
+        }
+
+        then:
+        CortexLabels.forSeries("lru-hot", "count", [:]).is(hot)
+        !CortexLabels.forSeries("lru-cold", "count", [:]).is(cold)
+    }
+
+    def "forget the labels of deleted jobs and folders"() {
+        given:
+        def job = CortexLabels.forSeries("folder1/job1", "count", [:])
+        def other = CortexLabels.forSeries("folder10/job1", "count", [:])
+
+        when:
+        CortexLabels.forget("folder1")
+
+        then:
+        !CortexLabels.forSeries("folder1/job1", "count", [:]).is(job)
+        CortexLabels.forSeries("folder10/job1", "count", [:]).is(other)
+    }
+}
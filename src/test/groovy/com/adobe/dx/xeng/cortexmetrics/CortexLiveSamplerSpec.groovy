@@ -0,0 +1,122 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition
+import org.jenkinsci.plugins.workflow.job.WorkflowJob
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+
+import java.util.function.Function
+
+class CortexLiveSamplerSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "sample all running builds in a single request"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setLiveMetricsEnabled(true)
+        globalConfig.setLiveMetricsInterval(3600)
+
+        and:
+        def job1 = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job1.setDefinition(new CpsFlowDefinition("sleep 60", true))
+        def job2 = jenkinsRule.createProject(WorkflowJob.class, "job2")
+        job2.setDefinition(new CpsFlowDefinition("sleep 60", true))
+
+        and:
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+        def writeRequest = null
+
+        when:
+        def build1 = job1.scheduleBuild2(0).waitForStart()
+        def build2 = job2.scheduleBuild2(0).waitForStart()
+        CortexLiveSampler.sample()
+
+        then:
+        1 * httpClient.execute({ HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            return true
+        }) >> response
+        writeRequest.timeseriesCount == 4
+        def series = writeRequest.timeseriesList.collect { ts -> ts.labelsList.collectEntries { [(it.name): it.value] } }
+        series.collect { it["__name__"] }.toSet() == ["gc-ns_jenkins_job_elapsed", "gc-ns_jenkins_job_heartbeat"] as Set
+        series.collect { it["job_name"] }.toSet() == ["job1", "job2"] as Set
+        series.every { it["build_number"] == "1" }
+
+        cleanup:
+        build1?.doStop()
+        build2?.doStop()
+        jenkinsRule.waitForCompletion(build1)
+        jenkinsRule.waitForCompletion(build2)
+    }
+
+    def "only sample running builds while live metrics are enabled"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setLiveMetricsInterval(3600)
+
+        and:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("sleep 60", true))
+
+        and:
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+        def writeRequest = null
+
+        when: "the build starts while live metrics are disabled"
+        def build = job.scheduleBuild2(0).waitForStart()
+        CortexLiveSampler.sample()
+
+        then:
+        0 * httpClient.execute(_)
+
+        when: "live metrics are enabled"
+        globalConfig.setLiveMetricsEnabled(true)
+        globalConfig.save()
+        CortexLiveSampler.sample()
+
+        then: "the build already running is sampled"
+        1 * httpClient.execute({ HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            return true
+        }) >> response
+        writeRequest.timeseriesList.collect { ts -> ts.labelsList.find { it.name == "job_name" }.value }.toSet() ==
+                ["job1"] as Set
+
+        when: "live metrics are disabled again"
+        globalConfig.setLiveMetricsEnabled(false)
+        globalConfig.save()
+        CortexLiveSampler.sample()
+
+        then:
+        0 * httpClient.execute(_)
+
+        cleanup:
+        build?.doStop()
+        jenkinsRule.waitForCompletion(build)
+    }
+}
@@ -0,0 +1,193 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.model.FreeStyleProject
+import hudson.model.Run
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+
+class CortexMetricsContributorSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "send contributed metrics in the same request as the run metrics"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+
+        and:
+        def contributors = jenkinsRule.jenkins.getExtensionList(CortexMetricsContributor.class)
+        contributors.add(new TestsContributor())
+        contributors.add(new SlowContributor())
+        contributors.add(new NotApplicableContributor())
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        def series = writeRequests[0].timeseriesList.collectEntries { timeSeries ->
+            def labels = timeSeries.labelsList.collectEntries { [(it.name): it.value] }
+            def key = labels.remove("__name__") + (labels.contributor ? "/" + labels.contributor : "")
+            [(key): [labels: labels, value: timeSeries.getSamples(0).value]]
+        }
+        series.keySet() == [
+                "gc-ns_jenkins_job_count",
+                "gc-ns_jenkins_job_duration",
+                "gc-ns_jenkins_job_tests_total",
+                "gc-ns_jenkins_job_contributor_duration/tests",
+                "gc-ns_jenkins_job_contributor_duration/slow",
+        ] as Set
+        series["gc-ns_jenkins_job_tests_total"].labels == [job_name: "job1", job_result: "SUCCESS", suite: "unit"]
+        series["gc-ns_jenkins_job_tests_total"].value == 42d
+        series["gc-ns_jenkins_job_contributor_duration/tests"].labels.contributor_result == "success"
+        series["gc-ns_jenkins_job_contributor_duration/slow"].labels.contributor_result == "timeout"
+    }
+
+    def "drop contributed series duplicating other series"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+
+        and:
+        def contributors = jenkinsRule.jenkins.getExtensionList(CortexMetricsContributor.class)
+        contributors.add(new TestsContributor())
+        contributors.add(new DuplicateContributor())
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        def names = writeRequests[0].timeseriesList.collect { timeSeries ->
+            timeSeries.labelsList.find { it.name == "__name__" }.value
+        }
+        names.size() == names.toSet().size() + 1
+        names.count { it == "gc-ns_jenkins_job_contributor_duration" } == 2
+        def values = writeRequests[0].timeseriesList.findAll { timeSeries ->
+            timeSeries.labelsList.find { it.name == "__name__" }.value != "gc-ns_jenkins_job_contributor_duration"
+        }.collectEntries { timeSeries ->
+            [(timeSeries.labelsList.find { it.name == "__name__" }.value): timeSeries.getSamples(0).value]
+        }
+        values["gc-ns_jenkins_job_count"] == 1d
+        values["gc-ns_jenkins_job_tests_total"] == 42d
+        values["gc-ns_jenkins_job_own"] == 1d
+        jenkinsRule.assertLogContains("Dropped 3 series from Cortex metrics contributor duplicate", build)
+    }
+
+    static class TestsContributor extends CortexMetricsContributor {
+        @Override
+        void contribute(Run<?, ?> run, Metrics metrics) {
+            metrics.add("tests_total", [suite: "unit"], 42)
+        }
+
+        @Override
+        String getName() {
+            return "tests"
+        }
+    }
+
+    static class DuplicateContributor extends CortexMetricsContributor {
+        @Override
+        void contribute(Run<?, ?> run, Metrics metrics) {
+            metrics.add("count", 99)
+            metrics.add("tests_total", [suite: "unit"], 99)
+            metrics.add("own", 1)
+            metrics.add("own", 99)
+        }
+
+        @Override
+        String getName() {
+            return "duplicate"
+        }
+    }
+
+    static class SlowContributor extends CortexMetricsContributor {
+        @Override
+        void contribute(Run<?, ?> run, Metrics metrics) {
+            try {
+                Thread.sleep(10000)
+            } catch (InterruptedException ignored) {
+                // Cancelled once the time budget has passed
+            }
+            metrics.add("too_late", 1)
+        }
+
+        @Override
+        long getTimeBudget() {
+            return 100
+        }
+
+        @Override
+        String getName() {
+            return "slow"
+        }
+    }
+
+    static class NotApplicableContributor extends CortexMetricsContributor {
+        @Override
+        boolean isApplicable(Run<?, ?> run) {
+            return false
+        }
+
+        @Override
+        void contribute(Run<?, ?> run, Metrics metrics) {
+            metrics.add("never", 1)
+        }
+    }
+}
@@ -2,13 +2,18 @@ package com.adobe.dx.xeng.cortexmetrics
 
 import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsFolderConfig
 import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.config.CortexTimestampPolicy
 import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
 import com.cloudbees.hudson.plugins.folder.Folder
 import hudson.model.FreeStyleProject
 import hudson.model.Result
 import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
 import org.apache.http.client.HttpClient
 import org.apache.http.client.methods.HttpPost
+import org.apache.http.entity.StringEntity
+import org.apache.http.message.BasicStatusLine
 import org.apache.http.util.EntityUtils
 import org.junit.Rule
 import org.jvnet.hudson.test.JenkinsRule
@@ -17,6 +22,8 @@ import org.xerial.snappy.Snappy
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import java.util.function.Function
+
 @Unroll
 class CortexPublisherSpec extends Specification {
     @Rule JenkinsRule jenkinsRule = new JenkinsRule()
@@ -35,7 +42,7 @@ class CortexPublisherSpec extends Specification {
 
         and:
         HttpClient httpClient = Mock()
-        CortexPublisher.httpClient = httpClient
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
 
         when:
         def build = project.scheduleBuild2(0).get()
@@ -51,8 +58,8 @@ class CortexPublisherSpec extends Specification {
             def writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes))
             assert writeRequest.timeseriesCount == 2
             assert writeRequest.timeseriesList[0].labelsCount == 3
-            assert writeRequest.timeseriesList[0].labelsList[1].getName() == "__name__"
-            assert writeRequest.timeseriesList[0].labelsList[1].getValue() == "gc-ns_jenkins_job_duration"
+            assert writeRequest.timeseriesList[0].labelsList[0].getName() == "__name__"
+            assert writeRequest.timeseriesList[0].labelsList[0].getValue() == "gc-ns_jenkins_job_duration"
             assert writeRequest.timeseriesList[1].labelsCount == 3
             return true
         })
@@ -79,7 +86,7 @@ class CortexPublisherSpec extends Specification {
 
         and:
         HttpClient httpClient = Mock()
-        CortexPublisher.httpClient = httpClient
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
 
         when:
         def build = project.scheduleBuild2(0).get()
@@ -100,14 +107,14 @@ class CortexPublisherSpec extends Specification {
 
             assert writeRequest.timeseriesCount == 2
             assert writeRequest.timeseriesList[0].labelsCount == 4
-            assert writeRequest.timeseriesList[0].labelsList[0].getName() == "job_name"
-            assert writeRequest.timeseriesList[0].labelsList[0].getValue() == "folder1/job1"
-            assert writeRequest.timeseriesList[0].labelsList[1].getName() == "l1"
-            assert writeRequest.timeseriesList[0].labelsList[1].getValue() == "v1"
-            assert writeRequest.timeseriesList[0].labelsList[2].getName() == "__name__"
-            assert writeRequest.timeseriesList[0].labelsList[2].getValue() == "override-ns_jenkins_job_count"
-            assert writeRequest.timeseriesList[0].labelsList[3].getName() == "job_result"
-            assert writeRequest.timeseriesList[0].labelsList[3].getValue() == "UNSTABLE"
+            assert writeRequest.timeseriesList[0].labelsList[0].getName() == "__name__"
+            assert writeRequest.timeseriesList[0].labelsList[0].getValue() == "override-ns_jenkins_job_count"
+            assert writeRequest.timeseriesList[0].labelsList[1].getName() == "job_name"
+            assert writeRequest.timeseriesList[0].labelsList[1].getValue() == "folder1/job1"
+            assert writeRequest.timeseriesList[0].labelsList[2].getName() == "job_result"
+            assert writeRequest.timeseriesList[0].labelsList[2].getValue() == "UNSTABLE"
+            assert writeRequest.timeseriesList[0].labelsList[3].getName() == "l1"
+            assert writeRequest.timeseriesList[0].labelsList[3].getValue() == "v1"
             assert writeRequest.timeseriesList[0].samplesCount == 1
             assert writeRequest.timeseriesList[0].samplesList[0].getValue() == 1d
 
@@ -137,7 +144,7 @@ class CortexPublisherSpec extends Specification {
 
         and:
         HttpClient httpClient = Mock()
-        CortexPublisher.httpClient = httpClient
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
 
         when:
         def build = project.scheduleBuild2(0).get()
@@ -155,10 +162,10 @@ class CortexPublisherSpec extends Specification {
 
             assert writeRequest.timeseriesCount == 2
             assert writeRequest.timeseriesList[0].labelsCount == 3
-            assert writeRequest.timeseriesList[0].labelsList[0].getName() == "job_name"
-            assert writeRequest.timeseriesList[0].labelsList[0].getValue() == "folder1/job1"
-            assert writeRequest.timeseriesList[0].labelsList[1].getName() == "__name__"
-            assert writeRequest.timeseriesList[0].labelsList[1].getValue() == "folder-ns1_jenkins_job_count"
+            assert writeRequest.timeseriesList[0].labelsList[0].getName() == "__name__"
+            assert writeRequest.timeseriesList[0].labelsList[0].getValue() == "folder-ns1_jenkins_job_count"
+            assert writeRequest.timeseriesList[0].labelsList[1].getName() == "job_name"
+            assert writeRequest.timeseriesList[0].labelsList[1].getValue() == "folder1/job1"
             assert writeRequest.timeseriesList[0].labelsList[2].getName() == "job_result"
             assert writeRequest.timeseriesList[0].labelsList[2].getValue() == "FAILURE"
             assert writeRequest.timeseriesList[0].samplesCount == 1
@@ -166,12 +173,249 @@ class CortexPublisherSpec extends Specification {
 
             // Check the run duration as well
             assert writeRequest.timeseriesList[1].labelsCount == 3
-            assert writeRequest.timeseriesList[1].labelsList[1].getName() == "__name__"
-            assert writeRequest.timeseriesList[1].labelsList[1].getValue() == "folder-ns1_jenkins_job_duration"
+            assert writeRequest.timeseriesList[1].labelsList[0].getName() == "__name__"
+            assert writeRequest.timeseriesList[1].labelsList[0].getValue() == "folder-ns1_jenkins_job_duration"
             assert writeRequest.timeseriesList[1].samplesCount == 1
             assert writeRequest.timeseriesList[1].samplesList[0].getValue() > 0
             return true
         })
         0 * _._
     }
+
+    def "abort writes exceeding the folder write timeout"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+
+        and:
+        def folder1 = jenkinsRule.createProject(Folder.class, "folder1")
+        def folderConfig = new CortexMetricsFolderConfig()
+        folderConfig.setWriteTimeout(1)
+        folder1.addProperty(folderConfig)
+        def project = folder1.createProject(FreeStyleProject.class, "job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = project.scheduleBuild2(0).get()
+        jenkinsRule.waitForCompletion(build)
+
+        then:
+        1 * httpClient.execute({ HttpPost post ->
+            assert post.getConfig().getSocketTimeout() == CortexMetricsGlobalConfig.DEFAULT_SOCKET_TIMEOUT * 1000
+            return true
+        }) >> { HttpPost post ->
+            // Block like a request waiting for Cortex until it is aborted, succeeding if it never is
+            long deadline = System.currentTimeMillis() + 10000
+            while (!post.isAborted() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            if (post.isAborted()) {
+                throw new IOException("Request aborted")
+            }
+            return response
+        }
+        jenkinsRule.assertLogContains("Write to Cortex did not complete within 1 seconds", build)
+    }
+
+    def "retry writes rejected with status #firstStatus"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setMinBackoff(1)
+        globalConfig.setMaxBackoff(10)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        HttpResponse rejected = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, firstStatus, "Rejected")
+            getEntity() >> new StringEntity("rejected")
+        }
+        HttpResponse accepted = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = project.scheduleBuild2(0).get()
+        jenkinsRule.waitForCompletion(build)
+
+        then:
+        requests * httpClient.execute(_) >>> [rejected, accepted]
+        if (requests == 1) {
+            jenkinsRule.assertLogContains("Cortex responded with status " + firstStatus + ": rejected", build)
+        } else {
+            jenkinsRule.assertLogContains("Successfully sent metrics to Cortex", build)
+        }
+
+        where:
+        firstStatus | requests
+        503         | 2
+        429         | 2
+        400         | 1
+    }
+
+    def "timestamp all samples with the publish time by default"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+        project.getBuildersList().add(new SleepBuilder(Result.SUCCESS))
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+        def writeRequest = null
+
+        when:
+        def build = project.scheduleBuild2(0).get()
+        jenkinsRule.waitForCompletion(build)
+
+        then:
+        globalConfig.getTimestampPolicy() == CortexTimestampPolicy.PUBLISH_TIME
+        1 * httpClient.execute({ HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            return true
+        })
+        writeRequest.timeseriesCount == 2
+        writeRequest.timeseriesList.every { it.samplesList[0].timestamp > build.startTimeInMillis }
+    }
+
+    def "timestamp all samples with the run start"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setTimestampPolicy(CortexTimestampPolicy.RUN_START)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+        project.getBuildersList().add(new SleepBuilder(Result.SUCCESS))
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+        def writeRequest = null
+
+        when:
+        def build = project.scheduleBuild2(0).get()
+        jenkinsRule.waitForCompletion(build)
+
+        then:
+        1 * httpClient.execute({ HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            return true
+        })
+        writeRequest.timeseriesCount == 2
+        writeRequest.timeseriesList.every { it.samplesList[0].timestamp == build.startTimeInMillis }
+    }
+
+    def "send queue and executor time with the node label"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setQueueMetricsEnabled(true)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.setAssignedLabel(jenkinsRule.jenkins.getSelfLabel())
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+        def writeRequest = null
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        1 * httpClient.execute({ HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            return true
+        })
+        def series = writeRequest.timeseriesList.collectEntries { ts ->
+            def labels = ts.labelsList.collectEntries { [(it.name): it.value] }
+            [(labels["__name__"]): labels]
+        }
+        series.keySet() == ["gc-ns_jenkins_job_count", "gc-ns_jenkins_job_duration", "gc-ns_jenkins_job_queue_duration",
+                            "gc-ns_jenkins_job_queue_blocked_duration", "gc-ns_jenkins_job_executor_duration"] as Set
+        series["gc-ns_jenkins_job_queue_duration"]["node_label"] == jenkinsRule.jenkins.getSelfLabel().getExpression()
+        !series["gc-ns_jenkins_job_count"].containsKey("node_label")
+    }
+
+    def "resolve folder config again once the folder is saved"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+
+        and:
+        def folder1 = jenkinsRule.createProject(Folder.class, "folder1")
+        def folderConfig = new CortexMetricsFolderConfig()
+        folderConfig.setUrl("http://folder-url/")
+        folder1.addProperty(folderConfig)
+        def project = folder1.createProject(FreeStyleProject.class, "job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+        folderConfig.setUrl("http://new-folder-url/")
+        folder1.save()
+        jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        1 * httpClient.execute({ HttpPost post -> post.getURI() == new URI("http://folder-url/") })
+        1 * httpClient.execute({ HttpPost post -> post.getURI() == new URI("http://new-folder-url/") })
+    }
+
+    def "share the endpoint of the configuration until it changes"() {
+        given:
+        def globalConfig = jenkinsRule.jenkins.getExtensionList(CortexMetricsGlobalConfig.class)[0]
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.save()
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        def build = jenkinsRule.buildAndAssertSuccess(project)
+
+        when:
+        def endpoint = new CortexPublisher(build, null, null, null, [:]).endpoint
+
+        then:
+        new CortexPublisher(build, null, null, null, [:]).endpoint.is(endpoint)
+        !new CortexPublisher(build, null, Secret.fromString("other-token"), null, [:]).endpoint.is(endpoint)
+
+        when:
+        globalConfig.setUrl("http://new-gc-url/")
+        globalConfig.save()
+
+        then:
+        new CortexPublisher(build, null, null, null, [:]).endpoint.url == "http://new-gc-url/"
+    }
 }
@@ -0,0 +1,192 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.model.FreeStyleProject
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition
+import org.jenkinsci.plugins.workflow.job.WorkflowJob
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+import java.util.logging.Handler
+import java.util.logging.Level
+import java.util.logging.LogRecord
+import java.util.logging.Logger
+
+class CortexRunListenerSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "publish metrics for included runs without per-job configuration"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setAllRunsEnabled(true)
+        globalConfig.setIncludedJobs("team-a/.*")
+        globalConfig.setExcludedJobs(".*/ignored")
+        globalConfig.setMaxSamplesPerSend(4)
+        globalConfig.setBatchSendDeadline(60)
+
+        and:
+        def folder = jenkinsRule.createFolder("team-a")
+        def project1 = folder.createProject(FreeStyleProject.class, "job1")
+        def project2 = folder.createProject(FreeStyleProject.class, "job2")
+        def ignored = folder.createProject(FreeStyleProject.class, "ignored")
+        def other = jenkinsRule.createFreeStyleProject("other")
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(ignored)
+        jenkinsRule.buildAndAssertSuccess(other)
+        jenkinsRule.buildAndAssertSuccess(project1)
+        jenkinsRule.buildAndAssertSuccess(project2)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        writeRequests[0].timeseriesCount == 4
+        writeRequests[0].timeseriesList.collect { series ->
+            series.labelsList.find { it.name == "job_name" }.value
+        }.toSet() == ["team-a/job1", "team-a/job2"] as Set
+    }
+
+    def "not publish metrics again for Pipelines calling the step"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setAllRunsEnabled(true)
+        globalConfig.setBatchSendDeadline(1)
+
+        and:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics(wait: true)", true))
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def run = jenkinsRule.buildAndAssertSuccess(job)
+
+        then:
+        run.getAction(CortexPublishedAction.class) != null
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+
+        when: "the queue has had time to send anything published on completion"
+        Thread.sleep(3000)
+
+        then:
+        writeRequests.size() == 1
+    }
+
+    def "complete runs without waiting for the contributors"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setAllRunsEnabled(true)
+        globalConfig.setBatchSendDeadline(1)
+
+        and:
+        def contributor = new PublishCortexMetricsStepSpec.BlockingContributor()
+        jenkinsRule.jenkins.getExtensionList(CortexMetricsContributor.class).add(contributor)
+        def project = jenkinsRule.createFreeStyleProject("job1")
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when: "the run completes while the contributor is still running"
+        jenkinsRule.buildAndAssertSuccess(project)
+        contributor.release.countDown()
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests*.timeseriesList.flatten().any { series ->
+                series.labelsList.any { it.name == "__name__" && it.value.endsWith("_jenkins_job_blocked") }
+            }
+        }
+    }
+
+    def "not warn about every run when Cortex is not configured"() {
+        given:
+        CortexMetricsGlobalConfig.get().setAllRunsEnabled(true)
+        def project = jenkinsRule.createFreeStyleProject("job1")
+
+        and:
+        def warnings = new CopyOnWriteArrayList<LogRecord>()
+        def handler = new Handler() {
+            @Override
+            void publish(LogRecord record) {
+                if (record.level == Level.WARNING) {
+                    warnings.add(record)
+                }
+            }
+
+            @Override
+            void flush() {
+            }
+
+            @Override
+            void close() {
+            }
+        }
+        def logger = Logger.getLogger(CortexRunListener.class.name)
+        logger.addHandler(handler)
+
+        when:
+        2.times { jenkinsRule.buildAndAssertSuccess(project) }
+
+        then:
+        warnings.isEmpty()
+
+        cleanup:
+        logger.removeHandler(handler)
+    }
+}
@@ -0,0 +1,126 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.model.Result
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition
+import org.jenkinsci.plugins.workflow.job.WorkflowJob
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+
+class CortexStageListenerSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "publish the duration and result of every stage"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setStageMetricsEnabled(true)
+        globalConfig.setBatchSendDeadline(1)
+
+        and:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("""
+            stage('build') { sleep 1 }
+            parallel(a: { echo 'a' }, b: { echo 'b' })
+            stage('test') { error 'failed' }
+        """, true))
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0))
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.collectMany { it.timeseriesList }.size() == 2
+        }
+        def stages = writeRequests.collectMany { it.timeseriesList }.collectEntries { series ->
+            def labels = series.labelsList.collectEntries { [(it.name): it.value] }
+            assert labels["__name__"] == "gc-ns_jenkins_job_stage_duration"
+            assert labels["job_name"] == "job1"
+            [(labels["stage"]): [labels["stage_result"], series.samplesList[0].value]]
+        }
+        stages.keySet() == ["build", "test"] as Set
+        stages["build"][0] == "SUCCESS"
+        stages["build"][1] >= 1d
+        stages["test"][0] == "FAILURE"
+    }
+
+    def "publish skipped Declarative stages as not built"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setStageMetricsEnabled(true)
+        globalConfig.setBatchSendDeadline(1)
+
+        and:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("""
+            pipeline {
+                agent none
+                stages {
+                    stage('build') { steps { echo 'build' } }
+                    stage('deploy') {
+                        when { expression { false } }
+                        steps { echo 'deploy' }
+                    }
+                }
+            }
+        """, true))
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(job)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.collectMany { it.timeseriesList }.size() == 2
+        }
+        def results = writeRequests.collectMany { it.timeseriesList }.collectEntries { series ->
+            def labels = series.labelsList.collectEntries { [(it.name): it.value] }
+            [(labels["stage"]): labels["stage_result"]]
+        }
+        results == [build: "SUCCESS", deploy: "NOT_BUILT"]
+    }
+}
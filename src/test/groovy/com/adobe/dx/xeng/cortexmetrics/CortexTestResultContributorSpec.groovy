@@ -0,0 +1,227 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.Launcher
+import hudson.model.AbstractBuild
+import hudson.model.BuildListener
+import hudson.tasks.test.AbstractTestResultAction
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.jvnet.hudson.test.TestBuilder
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+
+class CortexTestResultContributorSpec extends Specification {
+    private static final String REPORT = """<?xml version='1.1' encoding='UTF-8'?>
+<result plugin="junit@1.28">
+  <suites>
+    <suite>
+      <file>TEST-a.xml</file>
+      <name>com.example.ATest</name>
+      <stdout>output</stdout>
+      <duration>1.5</duration>
+      <cases>
+        <case>
+          <duration>1.5</duration>
+          <className>com.example.ATest</className>
+          <testName>works</testName>
+          <skipped>false</skipped>
+        </case>
+      </cases>
+    </suite>
+    <suite>
+      <file>TEST-b.xml</file>
+      <name>com.example.BTest</name>
+      <duration>2.25</duration>
+      <cases/>
+    </suite>
+  </suites>
+  <duration>3.75</duration>
+  <keepLongStdio>false</keepLongStdio>
+</result>
+"""
+
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "publish test counts and suite durations without loading the test result"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setTestMetricsEnabled(true)
+        globalConfig.setTestSuiteMetricsEnabled(true)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+                new File(build.rootDir, CortexTestResultContributor.REPORT_FILE).text = REPORT
+                build.addAction(new SummaryTestResultAction())
+                return true
+            }
+        })
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        def values = writeRequests[0].timeseriesList.collectEntries { timeSeries ->
+            def labels = timeSeries.labelsList.collectEntries { [(it.name): it.value] }
+            def key = labels["__name__"] + (labels.test_suite ? "/" + labels.test_suite : "")
+            [(key): timeSeries.getSamples(0).value]
+        }
+        values["gc-ns_jenkins_job_tests_total"] == 50000d
+        values["gc-ns_jenkins_job_tests_failed"] == 3d
+        values["gc-ns_jenkins_job_tests_skipped"] == 7d
+        values["gc-ns_jenkins_job_tests_duration"] == 3.75d
+        values["gc-ns_jenkins_job_test_suite_duration/com.example.ATest"] == 1.5d
+        values["gc-ns_jenkins_job_test_suite_duration/com.example.BTest"] == 2.25d
+    }
+
+    def "add up suite durations when the report has no total duration"() {
+        given:
+        def report = File.createTempFile("junitResult", ".xml")
+        report.text = REPORT.replace("<duration>3.75</duration>", "")
+        def suiteDurations = [:]
+
+        expect:
+        CortexTestResultContributor.readDurations(report, suiteDurations) == 3.75d
+        suiteDurations == ["com.example.ATest": 1.5d, "com.example.BTest": 2.25d]
+
+        cleanup:
+        report.delete()
+    }
+
+    def "publish the total duration without reading the suites when suite durations are disabled"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setTestMetricsEnabled(true)
+
+        and: "a report whose suites could not be parsed"
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+                new File(build.rootDir, CortexTestResultContributor.REPORT_FILE).text =
+                        REPORT.replace("<stdout>output</stdout>", "<stdout>output")
+                build.addAction(new SummaryTestResultAction())
+                return true
+            }
+        })
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        def values = writeRequests[0].timeseriesList.collectEntries { timeSeries ->
+            def labels = timeSeries.labelsList.collectEntries { [(it.name): it.value] }
+            [(labels["__name__"]): timeSeries.getSamples(0).value]
+        }
+        values["gc-ns_jenkins_job_tests_total"] == 50000d
+        values["gc-ns_jenkins_job_tests_duration"] == 3.75d
+        !values.containsKey("gc-ns_jenkins_job_test_suite_duration")
+    }
+
+    def "read the total duration from the end of the report"() {
+        given:
+        def report = File.createTempFile("junitResult", ".xml")
+
+        when: "the suites are much larger than the part of the report read"
+        report.text = REPORT.replace("<stdout>output</stdout>",
+                "<stdout>" + "x" * (CortexTestResultContributor.TAIL_SIZE * 10) + "</stdout>")
+
+        then:
+        CortexTestResultContributor.readTotalDuration(report) == 3.75d
+
+        when: "the report has no total duration"
+        report.text = REPORT.replace("<duration>3.75</duration>", "")
+
+        then:
+        CortexTestResultContributor.readTotalDuration(report) == -1d
+
+        when: "the report has no suites"
+        report.text = "<result><suites/><duration>0.5</duration></result>"
+
+        then:
+        CortexTestResultContributor.readTotalDuration(report) == 0.5d
+
+        cleanup:
+        report.delete()
+    }
+
+    /**
+     * Only has the summary counts, fails if the full result is requested.
+     */
+    static class SummaryTestResultAction extends AbstractTestResultAction {
+        @Override
+        int getFailCount() {
+            return 3
+        }
+
+        @Override
+        int getSkipCount() {
+            return 7
+        }
+
+        @Override
+        int getTotalCount() {
+            return 50000
+        }
+
+        @Override
+        Object getResult() {
+            throw new IllegalStateException("The test result must not be loaded")
+        }
+    }
+}
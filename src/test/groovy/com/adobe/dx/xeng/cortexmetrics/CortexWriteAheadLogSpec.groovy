@@ -0,0 +1,223 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import hudson.util.Secret
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import org.jvnet.hudson.test.JenkinsRule
+import spock.lang.Specification
+
+class CortexWriteAheadLogSpec extends Specification {
+    private static final long MAX_SIZE = 1024 * 1024
+
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+    @Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+    def "replay series that were not acknowledged before closing"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"), 1, 2, 3, 4)
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+
+        when:
+        log.append(endpoint, createTimeSeries("sent")).acknowledge()
+        log.append(endpoint, createTimeSeries("rejected")).acknowledge()
+        log.sync()
+        log.append(endpoint, createTimeSeries("pending"))
+        log.close()
+
+        and:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        def replayed = reopened.replay(Integer.MAX_VALUE)
+
+        then:
+        replayed.size() == 1
+        replayed[0].timeSeries == createTimeSeries("pending")
+        replayed[0].endpoint == endpoint
+        replayed[0].endpoint.bearerToken.plainText == "token"
+        replayed[0].endpoint.authorization == "Bearer token"
+        !reopened.isReplaying()
+
+        when:
+        replayed[0].segment.acknowledge()
+        reopened.close()
+
+        then:
+        directory.listFiles().length == 0
+    }
+
+    def "ignore a torn record at the end of a segment"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        log.append(endpoint, createTimeSeries("complete"))
+        log.append(endpoint, createTimeSeries("torn"))
+        log.close()
+
+        and:
+        def segment = directory.listFiles()[0]
+        def bytes = segment.bytes
+        segment.bytes = Arrays.copyOf(bytes, bytes.length - 3)
+
+        when:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+
+        then:
+        reopened.replay(Integer.MAX_VALUE)*.timeSeries == [createTimeSeries("complete")]
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "decrypt the bearer token once for all records of an endpoint"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        log.append(endpoint, createTimeSeries("first"))
+        log.append(endpoint, createTimeSeries("second"))
+        log.close()
+
+        when:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        def replayed = reopened.replay(Integer.MAX_VALUE)
+
+        then:
+        replayed.size() == 2
+        replayed[0].endpoint.bearerToken.is(replayed[1].endpoint.bearerToken)
+        replayed[1].endpoint.authorization == "Bearer token"
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "skip a corrupt record in the middle of a segment"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        log.append(endpoint, createTimeSeries("one"))
+        log.append(endpoint, createTimeSeries("two"))
+        log.append(endpoint, createTimeSeries("six"))
+        log.close()
+
+        and:
+        def segment = directory.listFiles()[0]
+        def bytes = segment.bytes
+        def recordSize = bytes.length.intdiv(3)
+        // Flip a byte in the payload of the second record
+        bytes[recordSize + 20] = (byte) (bytes[recordSize + 20] ^ 0xff)
+        segment.bytes = bytes
+
+        when:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+
+        then:
+        reopened.replay(Integer.MAX_VALUE)*.timeSeries == [createTimeSeries("one"), createTimeSeries("six")]
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "skip a corrupt region up to the next record"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        log.append(endpoint, createTimeSeries("one"))
+        log.append(endpoint, createTimeSeries("two"))
+        log.append(endpoint, createTimeSeries("six"))
+        log.close()
+
+        and:
+        def segment = directory.listFiles()[0]
+        def bytes = segment.bytes
+        def recordSize = bytes.length.intdiv(3)
+        // Overwrite the header of the second record and the start of the third
+        Arrays.fill(bytes, recordSize, recordSize + 4, (byte) 0)
+        Arrays.fill(bytes, recordSize * 2 + 20, recordSize * 2 + 24, (byte) 0)
+        segment.bytes = bytes
+
+        when:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+
+        then:
+        reopened.replay(Integer.MAX_VALUE)*.timeSeries == [createTimeSeries("one")]
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "replay series in chunks and delete each segment once read and acknowledged"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def log = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        log.append(endpoint, createTimeSeries("one"))
+        log.append(endpoint, createTimeSeries("two"))
+        log.append(endpoint, createTimeSeries("six"))
+        log.close()
+
+        when:
+        def reopened = CortexWriteAheadLog.open(directory, MAX_SIZE)
+        def first = reopened.replay(2)
+        first*.segment*.acknowledge()
+
+        then:
+        first*.timeSeries == [createTimeSeries("one"), createTimeSeries("two")]
+        reopened.isReplaying()
+        directory.listFiles().length == 2
+
+        when:
+        def second = reopened.replay(2)
+        second*.segment*.acknowledge()
+
+        then:
+        second*.timeSeries == [createTimeSeries("six")]
+        !reopened.isReplaying()
+        reopened.replay(2).isEmpty()
+        directory.listFiles().length == 1
+
+        cleanup:
+        reopened?.close()
+    }
+
+    def "stop logging series once the maximum size is reached"() {
+        given:
+        def directory = temporaryFolder.newFolder("wal")
+        def endpoint = new CortexEndpoint("http://cortex/api/prom/push", Secret.fromString("token"))
+        def probeDirectory = temporaryFolder.newFolder("probe")
+        def probe = CortexWriteAheadLog.open(probeDirectory, MAX_SIZE)
+        probe.append(endpoint, createTimeSeries("one"))
+        probe.close()
+        def recordSize = probeDirectory.listFiles()[0].length()
+
+        and:
+        def log = CortexWriteAheadLog.open(directory, recordSize * 2)
+
+        when:
+        def one = log.append(endpoint, createTimeSeries("one"))
+        def two = log.append(endpoint, createTimeSeries("two"))
+        def six = log.append(endpoint, createTimeSeries("six"))
+
+        then:
+        one != null
+        two != null
+        six == null
+
+        when:
+        one.acknowledge()
+        two.acknowledge()
+        log.sync()
+
+        then:
+        log.append(endpoint, createTimeSeries("ten")) != null
+
+        cleanup:
+        log?.close()
+    }
+
+    private static CortexTimeSeries createTimeSeries(String name) {
+        return new CortexTimeSeries(["__name__"] as String[], [name] as String[], 1d, 1000L)
+    }
+}
@@ -0,0 +1,131 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Function
+
+class CortexWriteQueueSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def "coalesce series from multiple runs into a single request"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setBatchingEnabled(true)
+        globalConfig.setMaxSamplesPerSend(4)
+        globalConfig.setBatchSendDeadline(60)
+
+        and:
+        def project1 = jenkinsRule.createFreeStyleProject("job1")
+        project1.getPublishersList().add(new CortexMetricsNotifier())
+        def project2 = jenkinsRule.createFreeStyleProject("job2")
+        project2.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def writeRequests = new CopyOnWriteArrayList<Prometheus.WriteRequest>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            assert post.getURI() == new URI("http://gc-url/")
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            writeRequests.add(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)))
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build1 = jenkinsRule.buildAndAssertSuccess(project1)
+        def build2 = jenkinsRule.buildAndAssertSuccess(project2)
+
+        then:
+        jenkinsRule.assertLogContains("Queued metrics for sending to Cortex", build1)
+        jenkinsRule.assertLogContains("Queued metrics for sending to Cortex", build2)
+        new PollingConditions(timeout: 10).eventually {
+            assert writeRequests.size() == 1
+        }
+        writeRequests[0].timeseriesCount == 4
+    }
+
+    def "drop series when the queue is full"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setBatchingEnabled(true)
+        globalConfig.setQueueCapacity(1)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(project)
+
+        then:
+        jenkinsRule.assertLogContains("Cortex write queue is full, dropping metrics", build)
+        0 * httpClient.execute(_)
+    }
+
+    def "send series from multiple runs on parallel shards"() {
+        given:
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setBatchingEnabled(true)
+        globalConfig.setMinShards(3)
+        globalConfig.setMaxShards(3)
+        globalConfig.setBatchSendDeadline(1)
+
+        and:
+        def project = jenkinsRule.createFreeStyleProject("job1")
+        project.getPublishersList().add(new CortexMetricsNotifier())
+
+        and:
+        def timeSeries = new CopyOnWriteArrayList<Prometheus.TimeSeries>()
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            timeSeries.addAll(Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes)).timeseriesList)
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        3.times { jenkinsRule.buildAndAssertSuccess(project) }
+
+        then:
+        CortexWriteQueue.get().getNumShards() == 3
+        new PollingConditions(timeout: 10).eventually {
+            assert timeSeries.size() == 6
+        }
+        // Samples for the same series are sent in the order they were queued
+        def durations = timeSeries.findAll { series ->
+            series.labelsList.any { it.name == "__name__" && it.value.endsWith("_duration") }
+        }
+        durations*.samplesList*.getAt(0)*.timestamp == durations*.samplesList*.getAt(0)*.timestamp.sort(false)
+    }
+}
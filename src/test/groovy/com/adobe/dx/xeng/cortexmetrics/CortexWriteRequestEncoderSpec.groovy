@@ -0,0 +1,72 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+@Unroll
+class CortexWriteRequestEncoderSpec extends Specification {
+    def "encode a write request to the expected bytes"() {
+        given:
+        def timeSeries = new CortexTimeSeries(["a"] as String[], ["b"] as String[], 1d, 2L)
+
+        expect:
+        CortexWriteRequestEncoder.encode([timeSeries]) == [
+                0x0a, 0x15,                               // WriteRequest.timeseries, 21 bytes
+                0x0a, 0x06,                               // TimeSeries.labels, 6 bytes
+                0x0a, 0x01, 0x61,                         // Label.name "a"
+                0x12, 0x01, 0x62,                         // Label.value "b"
+                0x12, 0x0b,                               // TimeSeries.samples, 11 bytes
+                0x09, 0, 0, 0, 0, 0, 0, 0xf0, 0x3f,       // Sample.value 1.0
+                0x10, 0x02                                // Sample.timestamp 2
+        ] as byte[]
+    }
+
+    def "encode #description identically to the generated protobuf code"() {
+        given:
+        def timeSeriesList = series.collect { labels, value, timestamp ->
+            new CortexTimeSeries(labels.keySet() as String[], labels.values() as String[], value, timestamp)
+        }
+        def writeRequest = Prometheus.WriteRequest.newBuilder()
+        series.each { labels, value, timestamp ->
+            def timeSeries = Prometheus.TimeSeries.newBuilder()
+            // Labels are always sent sorted by name
+            labels.sort().each { name, labelValue ->
+                timeSeries.addLabels(Prometheus.Label.newBuilder().setName(name).setValue(labelValue))
+            }
+            timeSeries.addSamples(Prometheus.Sample.newBuilder().setValue(value).setTimestamp(timestamp))
+            writeRequest.addTimeseries(timeSeries)
+        }
+        def expected = writeRequest.build().toByteArray()
+
+        and:
+        def buffer = ByteBuffer.allocateDirect(CortexWriteRequestEncoder.computeSize(timeSeriesList))
+        CortexWriteRequestEncoder.encode(timeSeriesList, buffer)
+        buffer.flip()
+        def bufferBytes = new byte[buffer.remaining()]
+        buffer.get(bufferBytes)
+
+        expect:
+        CortexWriteRequestEncoder.computeSize(timeSeriesList) == expected.length
+        CortexWriteRequestEncoder.encode(timeSeriesList) == expected
+        bufferBytes == expected
+
+        where:
+        description              | series
+        "no series"              | []
+        "a simple series"        | [[["__name__": "jenkins_job_count", "job_name": "folder1/job1"], 1d, 1617000000000L]]
+        "multiple series"        | [[["__name__": "count"], 1d, 1000L], [["__name__": "duration"], 12.5d, 2000L]]
+        "a zero value"           | [[["__name__": "count"], 0d, 1000L]]
+        "a negative zero value"  | [[["__name__": "count"], -0d, 1000L]]
+        "a NaN value"            | [[["__name__": "count"], Double.NaN, 1000L]]
+        "a zero timestamp"       | [[["__name__": "count"], 1d, 0L]]
+        "a negative timestamp"   | [[["__name__": "count"], 1d, -1L]]
+        "empty label values"     | [[["__name__": "count", "": "", "empty": ""], 1d, 1000L]]
+        "unicode labels"         | [[["__name__": "count", "label": "café 日本 🚀"], 1d, 1000L]]
+        "long labels"            | [[["__name__": "count", "long": "x" * 300], 1d, 1000L]]
+        "many labels"            | [[(1..50).collectEntries { ["label_$it".toString(), "value_$it".toString()] }, 3d, 1000L]]
+        "unsorted labels"        | [[["job_name": "job1", "__name__": "count", "Upper": "u", "a": "b"], 1d, 1000L]]
+    }
+}
@@ -0,0 +1,178 @@
+package com.adobe.dx.xeng.cortexmetrics
+
+import com.adobe.dx.xeng.cortexmetrics.config.CortexMetricsGlobalConfig
+import com.adobe.dx.xeng.cortexmetrics.proto.Prometheus
+import hudson.model.Run
+import hudson.util.Secret
+import org.apache.http.HttpResponse
+import org.apache.http.HttpVersion
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.message.BasicStatusLine
+import org.apache.http.util.EntityUtils
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition
+import org.jenkinsci.plugins.workflow.job.WorkflowJob
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import org.xerial.snappy.Snappy
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+
+class PublishCortexMetricsStepSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def setup() {
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+    }
+
+    def "wait for Cortex to accept the metrics"() {
+        given:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics(wait: true, labels: ['l1': 'v1'])", true))
+
+        and:
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(job)
+
+        then:
+        1 * httpClient.execute({ HttpPost post ->
+            assert post.getURI() == new URI("http://gc-url/")
+            def bytes = EntityUtils.toByteArray(post.getEntity())
+            def writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(bytes))
+            assert writeRequest.timeseriesCount == 2
+            assert writeRequest.timeseriesList[0].labelsList.find { it.name == "l1" }.value == "v1"
+            return true
+        }) >> response
+        jenkinsRule.assertLogContains("Successfully sent metrics to Cortex", build)
+    }
+
+    def "complete the step without waiting for Cortex"() {
+        given:
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics()", true))
+
+        and:
+        def release = new CountDownLatch(1)
+        def sent = new CountDownLatch(1)
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> {
+            release.await()
+            sent.countDown()
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(job)
+        release.countDown()
+
+        then:
+        jenkinsRule.assertLogNotContains("Successfully sent metrics to Cortex", build)
+        sent.await(10, TimeUnit.SECONDS)
+    }
+
+    def "drop the metrics when too many series are waiting to be sent"() {
+        given:
+        CortexMetricsGlobalConfig.get().setQueueCapacity(1)
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics(wait: true)", true))
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(job)
+
+        then:
+        0 * httpClient.execute(_)
+        jenkinsRule.assertLogContains("Cortex send queue is full, dropping metrics", build)
+        jenkinsRule.assertLogContains("Failed to send metrics to Cortex", build)
+    }
+
+    def "fail to send the metrics when the write queue is full"() {
+        given: "room for the series of the run but not for the contributed ones"
+        CortexMetricsGlobalConfig.get().setBatchingEnabled(true)
+        CortexMetricsGlobalConfig.get().setQueueCapacity(2)
+        def contributor = new BlockingContributor()
+        contributor.release.countDown()
+        jenkinsRule.jenkins.getExtensionList(CortexMetricsContributor.class).add(contributor)
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics(wait: true)", true))
+
+        and:
+        HttpClient httpClient = Mock()
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when:
+        def build = jenkinsRule.buildAndAssertSuccess(job)
+
+        then:
+        0 * httpClient.execute(_)
+        jenkinsRule.assertLogContains("Cortex write queue is full, dropping metrics", build)
+        jenkinsRule.assertLogContains("Failed to send metrics to Cortex", build)
+        jenkinsRule.assertLogNotContains("Successfully sent metrics to Cortex", build)
+    }
+
+    def "call the contributors without holding up the Pipeline"() {
+        given:
+        def contributor = new BlockingContributor()
+        jenkinsRule.jenkins.getExtensionList(CortexMetricsContributor.class).add(contributor)
+        def job = jenkinsRule.createProject(WorkflowJob.class, "job1")
+        job.setDefinition(new CpsFlowDefinition("publishCortexMetrics()", true))
+
+        and:
+        def writeRequest = null
+        def sent = new CountDownLatch(1)
+        HttpResponse response = Stub() {
+            getStatusLine() >> new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK")
+        }
+        HttpClient httpClient = Mock()
+        httpClient.execute(_) >> { HttpPost post ->
+            writeRequest = Prometheus.WriteRequest.parseFrom(Snappy.uncompress(EntityUtils.toByteArray(post.getEntity())))
+            sent.countDown()
+            return response
+        }
+        CortexHttpClients.setClientFactory({ httpClient } as Function)
+
+        when: "the build completes while the contributor is still running"
+        jenkinsRule.buildAndAssertSuccess(job)
+        contributor.release.countDown()
+
+        then:
+        sent.await(10, TimeUnit.SECONDS)
+        writeRequest.timeseriesList.any { series ->
+            series.labelsList.any { it.name == "__name__" && it.value == "gc-ns_jenkins_job_blocked" }
+        }
+    }
+
+    static class BlockingContributor extends CortexMetricsContributor {
+        final CountDownLatch release = new CountDownLatch(1)
+
+        @Override
+        void contribute(Run<?, ?> run, Metrics metrics) {
+            release.await(30, TimeUnit.SECONDS)
+            metrics.add("blocked", 1)
+        }
+
+        @Override
+        long getTimeBudget() {
+            return 30000
+        }
+    }
+}
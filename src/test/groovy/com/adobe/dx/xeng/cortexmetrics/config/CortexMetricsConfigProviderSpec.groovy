@@ -0,0 +1,155 @@
+package com.adobe.dx.xeng.cortexmetrics.config
+
+import com.cloudbees.hudson.plugins.folder.Folder
+import hudson.model.FreeStyleProject
+import hudson.model.Item
+import hudson.util.Secret
+import org.junit.Rule
+import org.jvnet.hudson.test.JenkinsRule
+import spock.lang.Specification
+
+class CortexMetricsConfigProviderSpec extends Specification {
+    @Rule JenkinsRule jenkinsRule = new JenkinsRule()
+
+    def setup() {
+        def globalConfig = CortexMetricsGlobalConfig.get()
+        globalConfig.setUrl("http://gc-url/")
+        globalConfig.setBearerToken(Secret.fromString("gc-token"))
+        globalConfig.setNamespace("gc-ns")
+        globalConfig.setConnectTimeout(11)
+        globalConfig.setSocketTimeout(12)
+        globalConfig.setConnectionRequestTimeout(13)
+        globalConfig.setWriteTimeout(14)
+    }
+
+    def "take the settings a folder does not set from the global configuration"() {
+        given:
+        def folder = jenkinsRule.createFolder("folder1")
+        def folderConfig = new CortexMetricsFolderConfig()
+        folderConfig.setNamespace("f-ns")
+        folderConfig.setConnectTimeout(21)
+        folder.getProperties().add(folderConfig)
+        def job = folder.createProject(FreeStyleProject.class, "job1")
+
+        when:
+        def config = CortexMetricsConfigProvider.getResolvedConfig(job)
+
+        then:
+        config.url == "http://gc-url/"
+        config.bearerToken.plainText == "gc-token"
+        config.namespace == "f-ns"
+        config.connectTimeout == 21
+        config.socketTimeout == 12
+        config.connectionRequestTimeout == 13
+        config.writeTimeout == 14
+    }
+
+    def "prefer the settings of the closest folder"() {
+        given:
+        def outer = jenkinsRule.createFolder("outer")
+        def outerConfig = new CortexMetricsFolderConfig()
+        outerConfig.setUrl("http://outer-url/")
+        outerConfig.setNamespace("outer-ns")
+        outerConfig.setSocketTimeout(31)
+        outer.getProperties().add(outerConfig)
+        def inner = outer.createProject(Folder.class, "inner")
+        def innerConfig = new CortexMetricsFolderConfig()
+        innerConfig.setNamespace("inner-ns")
+        innerConfig.setWriteTimeout(41)
+        inner.getProperties().add(innerConfig)
+        def job = inner.createProject(FreeStyleProject.class, "job1")
+
+        when:
+        def config = CortexMetricsConfigProvider.getResolvedConfig(job)
+
+        then:
+        config.url == "http://outer-url/"
+        config.bearerToken.plainText == "gc-token"
+        config.namespace == "inner-ns"
+        config.connectTimeout == 11
+        config.socketTimeout == 31
+        config.connectionRequestTimeout == 13
+        config.writeTimeout == 41
+    }
+
+    def "resolve providers that only implement the getters"() {
+        given:
+        jenkinsRule.jenkins.getExtensionList(CortexMetricsConfigProvider.class).add(new GettersOnlyProvider())
+        def folder = jenkinsRule.createFolder("folder1")
+        def folderConfig = new CortexMetricsFolderConfig()
+        folderConfig.setNamespace("f-ns")
+        folder.getProperties().add(folderConfig)
+        def job = folder.createProject(FreeStyleProject.class, "job1")
+
+        when:
+        def config = CortexMetricsConfigProvider.getResolvedConfig(job)
+
+        then: "the provider is asked after the folders and before the global configuration"
+        config.url == "http://provider-url/"
+        config.bearerToken.plainText == "gc-token"
+        config.namespace == "f-ns"
+        config.connectTimeout == 51
+        config.socketTimeout == 12
+        config.connectionRequestTimeout == 13
+        config.writeTimeout == 14
+    }
+
+    def "stop asking providers once every setting is set"() {
+        given:
+        def provider = new GettersOnlyProvider()
+        jenkinsRule.jenkins.getExtensionList(CortexMetricsConfigProvider.class).add(provider)
+        def complete = jenkinsRule.createFolder("complete")
+        def completeConfig = new CortexMetricsFolderConfig()
+        completeConfig.setUrl("http://f-url/")
+        completeConfig.setBearerToken(Secret.fromString("f-token"))
+        completeConfig.setNamespace("f-ns")
+        completeConfig.setConnectTimeout(21)
+        completeConfig.setSocketTimeout(22)
+        completeConfig.setConnectionRequestTimeout(23)
+        completeConfig.setWriteTimeout(24)
+        complete.getProperties().add(completeConfig)
+        def job = complete.createProject(FreeStyleProject.class, "job1")
+
+        when:
+        def config = CortexMetricsConfigProvider.getResolvedConfig(job)
+
+        then:
+        config.url == "http://f-url/"
+        config.writeTimeout == 24
+        provider.calls == 0
+
+        when:
+        CortexMetricsConfigProvider.getResolvedConfig(jenkinsRule.createFreeStyleProject("job2"))
+
+        then:
+        provider.calls > 0
+    }
+
+    /**
+     * Only implements the getters, so is resolved by the default implementation.
+     */
+    static class GettersOnlyProvider extends CortexMetricsConfigProvider {
+        int calls
+
+        @Override
+        String getUrl(Item item) {
+            calls++
+            return "http://provider-url/"
+        }
+
+        @Override
+        Secret getBearerToken(Item item) {
+            return null
+        }
+
+        @Override
+        String getNamespace(Item item) {
+            return "provider-ns"
+        }
+
+        @Override
+        int getConnectTimeout(Item item) {
+            return 51
+        }
+    }
+}